@@ -0,0 +1,45 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Scratch files for the benchmarks.
+ */
+final class BenchmarkFiles {
+
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * Create a directory of small files named like instrument output.
+	 */
+	static Path[] create(Path dir, int count) throws IOException {
+		Path[] files = new Path[count];
+		byte[] content = new byte[1024];
+		for (int i = 0; i < count; i++) {
+			files[i] = Files.write(dir.resolve(String.format("tile_%06d.tif", i)), content);
+		}
+		return files;
+	}
+
+	static void delete(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
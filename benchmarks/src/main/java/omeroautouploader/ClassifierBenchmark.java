@@ -0,0 +1,62 @@
+package omeroautouploader;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of deciding whether a file name is importable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClassifierBenchmark {
+
+	/**
+	 * A fixed sample of Bio-Formats suffixes, so the numbers do not move
+	 * when Bio-Formats adds readers.
+	 */
+	static final String[] SUFFIXES = {
+		"tif", "tiff", "tf2", "tf8", "btf", "ome.tif", "ome.tiff", "ome.tf2", "ome.tf8", "ome.btf",
+		"zvi", "czi", "lsm", "nd2", "lif", "lei", "oib", "oif", "ims", "dv", "r3d", "ics", "ids",
+		"png", "jpg", "jpeg", "bmp", "gif", "dcm", "dicom", "svs", "vsi", "ndpi", "scn", "txt", "csv"
+	};
+
+	private static final String[] NAMES = {
+		"slide_001.tif", "Slide_002.TIF", "stack.ome.tiff", "scan.Zvi", "experiment.czi",
+		"notes.txt", "export.csv", "image.nd2", "capture.JPG", "series.lif"
+	};
+
+	private FormatClassifier classifier;
+	private Path[] paths;
+
+	@Setup
+	public void setUp() {
+		classifier = new FormatClassifier(SUFFIXES);
+		paths = new Path[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			paths[i] = Paths.get("/data/instrument", NAMES[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(10)
+	public int classify() {
+		int images = 0;
+		for (Path p : paths) {
+			if (classifier.classify(p) == FormatClassifier.Kind.IMAGE) {
+				images++;
+			}
+		}
+		return images;
+	}
+}
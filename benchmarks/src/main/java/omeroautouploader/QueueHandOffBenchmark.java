@@ -0,0 +1,75 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of handing batches from the watch loop to the import workers and
+ * through the ledger, with a {@link StubUploader} in place of the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueHandOffBenchmark {
+
+	private static final int BATCHES = 1000;
+
+	@Param({ "1", "4" })
+	public int workers;
+
+	private Path dir;
+	private Path[] paths;
+	private ImportLedger ledger;
+	private ContentHashIndex index;
+	private ImportWorkerPool pool;
+	private final AtomicLong imported = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("queue-bench");
+		paths = BenchmarkFiles.create(dir, BATCHES);
+		ledger = new ImportLedger(dir.resolve("ledger.journal"));
+		index = new ContentHashIndex(dir.resolve("content.index"));
+		pool = new ImportWorkerPool(StubUploader.factory(0L, imported),
+			new ReaderCache(dir.resolve("bfmemo"), ReaderCache.DEFAULT_MINIMUM_ELAPSED),
+			workers, ledger, index);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		pool.shutdown();
+		ledger.close();
+		index.close();
+		BenchmarkFiles.delete(dir);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCHES)
+	public long handOff() throws InterruptedException {
+		long target = imported.get() + BATCHES;
+		for (Path p : paths) {
+			ImportBatch batch = new ImportBatch(p.getParent(), null, System.currentTimeMillis());
+			batch.add(new ImportItem(p, 1024L, 0L, null));
+			pool.submit(batch);
+		}
+		while (imported.get() < target) {
+			Thread.sleep(0L, 100000);
+		}
+		return imported.get();
+	}
+}
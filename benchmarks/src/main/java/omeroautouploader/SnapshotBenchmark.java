@@ -0,0 +1,50 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of recovering a directory after an OVERFLOW event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotBenchmark {
+
+	@Param({ "100", "10000" })
+	public int files;
+
+	private Path dir;
+	private DirectorySnapshots snapshots;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("snapshot-bench");
+		BenchmarkFiles.create(dir, files);
+		snapshots = new DirectorySnapshots();
+		snapshots.reconcile(dir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkFiles.delete(dir);
+	}
+
+	@Benchmark
+	public int reconcileUnchanged() throws IOException {
+		return snapshots.reconcile(dir).size();
+	}
+}
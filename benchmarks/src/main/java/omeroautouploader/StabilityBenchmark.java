@@ -0,0 +1,103 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of tracking a burst of new files until they are stable, comparing
+ * {@link FileStabilityTracker} with the expirationTimes map it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StabilityBenchmark {
+
+	@Param({ "100", "10000" })
+	public int files;
+
+	private Path dir;
+	private Path[] paths;
+	private FormatClassifier classifier;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("stability-bench");
+		paths = BenchmarkFiles.create(dir, files);
+		classifier = new FormatClassifier(ClassifierBenchmark.SUFFIXES);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkFiles.delete(dir);
+	}
+
+	/**
+	 * What the watch loop does for each new file event.
+	 */
+	@Benchmark
+	public int eventPath() {
+		FileStabilityTracker tracker = new FileStabilityTracker();
+		long now = System.currentTimeMillis();
+		for (Path p : paths) {
+			if (classifier.classify(p) != FormatClassifier.Kind.IGNORED) {
+				tracker.touch(p, now);
+			}
+		}
+		return tracker.size();
+	}
+
+	/**
+	 * Touch every file, then take them all off as stable.
+	 */
+	@Benchmark
+	public int trackerBurst() {
+		FileStabilityTracker tracker = new FileStabilityTracker();
+		long now = System.currentTimeMillis();
+		for (Path p : paths) {
+			tracker.touch(p, now);
+		}
+		return tracker.expire(now + FileStabilityTracker.MAX_WINDOW).size();
+	}
+
+	/**
+	 * The old approach: a map of deadlines, with the minimum found and the
+	 * whole map walked on every wakeup. Wakeups are simulated one per file.
+	 */
+	@Benchmark
+	public int legacyMapBurst() {
+		Map<Path, Long> expirationTimes = new HashMap<Path, Long>();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < paths.length; i++) {
+			expirationTimes.put(paths[i], now + i);
+		}
+		int expired = 0;
+		while (!expirationTimes.isEmpty()) {
+			long due = Collections.min(expirationTimes.values());
+			Iterator<Map.Entry<Path, Long>> it = expirationTimes.entrySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().getValue() <= due) {
+					it.remove();
+					expired++;
+				}
+			}
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,63 @@
+package omeroautouploader;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Stand-in for {@link UploadToOmero} that never contacts a server. Each call
+ * to {@link #start} optionally sleeps to simulate the transfer and then
+ * reports success, with a made-up Pixels id for each file.
+ */
+public class StubUploader implements Uploader {
+
+	private final long delayMillis;
+	private final AtomicLong files;
+	private final Set<String> imported = new HashSet<String>();
+
+	public StubUploader(long delayMillis, AtomicLong files) {
+		this.delayMillis = delayMillis;
+		this.files = files;
+	}
+
+	@Override
+	public int start(String[] paths, ImportConfig target) throws Exception {
+		if (delayMillis > 0) {
+			Thread.sleep(delayMillis);
+		}
+		imported.clear();
+		imported.addAll(Arrays.asList(paths));
+		files.addAndGet(paths.length);
+		return 0;
+	}
+
+	@Override
+	public long[] getImportedPixelsIds(String path) {
+		return imported.contains(path) ? new long[] { 1L } : new long[0];
+	}
+
+	@Override
+	public String getUploadedHash(String path) {
+		return null;
+	}
+
+	@Override
+	public void probe() {
+	}
+
+	@Override
+	public void cleanup() {
+	}
+
+	public static Uploader.Factory factory(final long delayMillis, final AtomicLong files) {
+		return new Uploader.Factory() {
+			@Override
+			public Uploader create() {
+				return new StubUploader(delayMillis, files);
+			}
+		};
+	}
+}
@@ -0,0 +1,215 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clears imported files out of the watched folders, so the trees stay
+ * small and startup scans stay fast.
+ *
+ * Each file is first checked on a pool of threads: it must not have changed
+ * since it was found stable, and its content must still have the SHA-1
+ * taken before the import, which must also be the SHA-1 sent to the server,
+ * which the import process has verified against its own. A duplicate that
+ * was skipped, and so never sent, is checked against its own checksum
+ * alone. A file that fails any check is left where it is.
+ *
+ * It is then either moved under the archive folder, keeping its path
+ * below the watch root, or deleted. A move is a single atomic rename where
+ * the archive is on the same file system; otherwise the file is copied next
+ * to its destination, renamed into place and only then deleted, so the
+ * archive never holds a partial file. Any lease left next to the file by
+ * a {@link LeaseCoordinator} goes with it.
+ */
+public class ArchiveStage {
+
+	public enum Mode { NONE, MOVE, DELETE }
+
+	private final Mode mode;
+	private final Path archive;
+	private final ExecutorService executor;
+
+	/**
+	 * @param mode what to do with a file once it is checked
+	 * @param archive where files are moved to; only used with {@link Mode#MOVE}
+	 */
+	public ArchiveStage(Mode mode, Path archive) {
+		if (mode == Mode.MOVE && archive == null) {
+			throw new IllegalArgumentException("Moving files needs an archive folder");
+		}
+		this.mode = mode;
+		this.archive = archive;
+		this.executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int count = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "archive-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/**
+	 * Parse "none", "move" or "delete".
+	 */
+	public static Mode parseMode(String mode) {
+		return Mode.valueOf(mode.trim().toUpperCase(Locale.ENGLISH));
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Check and archive an imported file in the background, then release
+	 * it from the pipeline. A file is only archived if what was sent to the
+	 * server is known to be what is on disk.
+	 *
+	 * @param uploaded SHA-1 of what was sent to the server; if null, as
+	 *        when the uploader does not report one, the file is left in place
+	 */
+	public void submit(ImportItem item, String uploaded) {
+		submit(item, uploaded, false);
+	}
+
+	/**
+	 * As {@link #submit}, for a file skipped because the same content has
+	 * already been imported, so that nothing was sent for it. It is checked
+	 * against its own checksum alone.
+	 */
+	public void submitDuplicate(ImportItem item) {
+		submit(item, null, true);
+	}
+
+	private void submit(final ImportItem item, final String uploaded, final boolean duplicate) {
+		if (mode == Mode.NONE) {
+			item.done();
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long started = System.currentTimeMillis();
+					try {
+						if (verify(item, uploaded, duplicate)) {
+							archive(item);
+							PipelineMetrics.get().record(PipelineMetrics.Stage.ARCHIVE,
+								System.currentTimeMillis() - started);
+						}
+					} catch (IOException e) {
+						Log.warn("Could not archive '%s' (%s); left in place.", item.file, e);
+					} finally {
+						item.done();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down; the file stays where it is
+			item.done();
+		}
+	}
+
+	/**
+	 * Stop taking files, waiting up to {@link ImportWorkerPool#SHUTDOWN_WAIT}
+	 * for the files being archived to be dealt with, as they still write to the ledger.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(ImportWorkerPool.SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * True if the file on disk is still what was imported.
+	 */
+	private boolean verify(ImportItem item, String uploaded, boolean duplicate) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(item.file, BasicFileAttributes.class);
+		if (attrs.size() != item.size || attrs.lastModifiedTime().toMillis() != item.modified) {
+			Log.warn("'%s' has changed since it was imported; left in place.", item.file);
+			return false;
+		}
+		if (item.hash == null) {
+			Log.warn("'%s' was not checksummed before import; left in place.", item.file);
+			return false;
+		}
+		if (!duplicate && uploaded == null) {
+			Log.warn("'%s' has no record of what was sent to the server; left in place.", item.file);
+			return false;
+		}
+		if (!duplicate && !uploaded.equals(item.hash)) {
+			Log.warn("'%s' was sent with SHA-1 %s but checksummed as %s; left in place.",
+				item.file, uploaded, item.hash);
+			return false;
+		}
+		String now = ChecksumStage.sha1(item.file);
+		if (!now.equals(item.hash)) {
+			Log.warn("'%s' no longer has the content that was imported; left in place.", item.file);
+			return false;
+		}
+		return true;
+	}
+
+	private void archive(ImportItem item) throws IOException {
+		if (mode == Mode.DELETE) {
+			Files.delete(item.file);
+			LeaseCoordinator.remove(item.file);
+			Log.info("Deleted imported file '%s'.", item.file);
+			return;
+		}
+		Path target = unique(destination(item));
+		Files.createDirectories(target.getParent());
+		try {
+			Files.move(item.file, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			// Another file system: copy next to the target, then rename
+			Path part = target.resolveSibling(target.getFileName() + ".part");
+			Files.copy(item.file, part, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.COPY_ATTRIBUTES);
+			Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+			Files.delete(item.file);
+		}
+		LeaseCoordinator.remove(item.file);
+		Log.info("Archived '%s' to '%s'.", item.file, target);
+	}
+
+	/**
+	 * Where a file goes in the archive: below a folder named after its
+	 * watch root, at the same path as below the root.
+	 */
+	private Path destination(ImportItem item) {
+		if (item.root == null || !item.file.startsWith(item.root.path)) {
+			return archive.resolve(item.file.getFileName());
+		}
+		Path name = item.root.path.getFileName();
+		Path below = item.root.path.relativize(item.file);
+		return name == null ? archive.resolve(below) : archive.resolve(name).resolve(below);
+	}
+
+	/**
+	 * The path, or the first of path.1, path.2 and so on that is free, so
+	 * that nothing already archived is overwritten.
+	 */
+	private static Path unique(Path path) {
+		Path candidate = path;
+		for (int i = 1; Files.exists(candidate); i++) {
+			candidate = path.resolveSibling(path.getFileName() + "." + i);
+		}
+		return candidate;
+	}
+}
@@ -0,0 +1,111 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a watch root in parallel when it is added, registering its
+ * directories and reporting the files already in it, so that files which
+ * arrived while the service was down are imported too. Directories that
+ * appear under a root later are walked the same way.
+ *
+ * The walk runs in the background and reports as it goes; each directory is
+ * handed to the sink before it is listed, so a file created during the walk
+ * is either listed or produces a watch event.
+ */
+public class BacklogScanner {
+
+	public interface Sink {
+		/** A directory is about to be listed. */
+		void directory(Path dir) throws IOException;
+
+		/** A regular file was found. Called from several threads at once. */
+		void file(Path file, BasicFileAttributes attrs);
+
+		/** The whole walk has finished. */
+		void done(Path root);
+	}
+
+	private static final ForkJoinPool SCANNERS =
+		new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private BacklogScanner() {
+	}
+
+	/**
+	 * Start walking a root in the background.
+	 */
+	public static void start(WatchRoot root, Sink sink) {
+		start(root.path, root.recursive, sink);
+	}
+
+	/**
+	 * Start walking a directory in the background, e.g. one that has just
+	 * been created inside a root.
+	 */
+	public static void start(final Path dir, final boolean recursive, final Sink sink) {
+		SCANNERS.execute(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				try {
+					new Scan(dir, recursive, sink).invoke();
+				} finally {
+					sink.done(dir);
+				}
+			}
+		});
+	}
+
+	private static class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final boolean descend;
+		private final Sink sink;
+
+		Scan(Path dir, boolean descend, Sink sink) {
+			this.dir = dir;
+			this.descend = descend;
+			this.sink = sink;
+		}
+
+		@Override
+		protected void compute() {
+			List<Scan> children = new ArrayList<Scan>();
+			try {
+				sink.directory(dir);
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+					for (Path entry : stream) {
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+						} catch (IOException e) {
+							continue;
+						}
+						if (attrs.isDirectory()) {
+							if (descend) {
+								children.add(new Scan(entry, true, sink));
+							}
+						} else if (attrs.isRegularFile()) {
+							sink.file(entry, attrs);
+						}
+					}
+				}
+			} catch (IOException e) {
+				Log.warn("Could not scan '%s': %s", dir, e);
+			}
+			invokeAll(children);
+		}
+	}
+}
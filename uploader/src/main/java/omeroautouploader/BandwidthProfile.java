@@ -0,0 +1,98 @@
+package omeroautouploader;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Total upload bandwidth by time of day, so that bulk transfers can be held
+ * back during working hours and let loose overnight.
+ *
+ * Written as a comma separated list of start times and rates, e.g.
+ *
+ * <pre>
+ * 08:00=20M,19:00=0
+ * </pre>
+ *
+ * which limits uploads to 20 MB/s from eight in the morning and lifts the
+ * limit at seven in the evening. Each rate holds until the next start time,
+ * wrapping round midnight; a rate of 0 means no limit. Rates are bytes per
+ * second with an optional K, M or G suffix.
+ */
+public class BandwidthProfile {
+
+	/** Rate by minute of the day at which it starts. */
+	private final TreeMap<Integer, Long> rates = new TreeMap<Integer, Long>();
+
+	private BandwidthProfile() {
+	}
+
+	/**
+	 * The same rate all day.
+	 */
+	public static BandwidthProfile constant(long rate) {
+		BandwidthProfile profile = new BandwidthProfile();
+		profile.rates.put(0, rate);
+		return profile;
+	}
+
+	public static BandwidthProfile parse(String spec) {
+		BandwidthProfile profile = new BandwidthProfile();
+		for (String period : spec.split(",")) {
+			period = period.trim();
+			if (period.isEmpty()) {
+				continue;
+			}
+			int eq = period.indexOf('=');
+			int colon = period.indexOf(':');
+			if (eq < 0 || colon < 0 || colon > eq) {
+				throw new IllegalArgumentException("Bad bandwidth period: " + period);
+			}
+			int hour = Integer.parseInt(period.substring(0, colon).trim());
+			int minute = Integer.parseInt(period.substring(colon + 1, eq).trim());
+			if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+				throw new IllegalArgumentException("Bad bandwidth period: " + period);
+			}
+			profile.rates.put(hour * 60 + minute, parseRate(period.substring(eq + 1)));
+		}
+		if (profile.rates.isEmpty()) {
+			throw new IllegalArgumentException("Empty bandwidth profile");
+		}
+		return profile;
+	}
+
+	/**
+	 * A byte rate such as 500K, 20M or 1G; 0 for no limit.
+	 */
+	public static long parseRate(String rate) {
+		String r = rate.trim().toUpperCase(Locale.ENGLISH);
+		long unit = 1L;
+		if (r.endsWith("K")) {
+			unit = 1024L;
+		} else if (r.endsWith("M")) {
+			unit = 1024L * 1024;
+		} else if (r.endsWith("G")) {
+			unit = 1024L * 1024 * 1024;
+		}
+		if (unit > 1L) {
+			r = r.substring(0, r.length() - 1).trim();
+		}
+		return Long.parseLong(r) * unit;
+	}
+
+	/**
+	 * Bytes per second allowed at the given time, 0 for no limit.
+	 */
+	public long rateAt(long millis) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(millis);
+		int minute = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
+		Map.Entry<Integer, Long> e = rates.floorEntry(minute);
+		if (e == null) {
+			// before the first start time: still in yesterday's last period
+			e = rates.lastEntry();
+		}
+		return e.getValue();
+	}
+}
@@ -0,0 +1,174 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Hashes stable files on a pool of threads, one per core, before they are
+ * handed on to be batched and imported. Content the {@link ContentHashIndex}
+ * has already seen go to the file's target on one of the servers is marked
+ * as imported in the ledger and never reaches a server again.
+ *
+ * Files are read in one sequential pass into a direct buffer kept by each
+ * hashing thread, so there is no copying into the heap. They are not
+ * mapped: a mapping stays until it is garbage collected, and on Windows a
+ * mapped file cannot be moved or deleted, as the archive stage does once
+ * the file is imported.
+ */
+public class ChecksumStage {
+
+	/** Each thread's buffer the file is read into. */
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(ChunkedTransfer.BLOCK_SIZE);
+		}
+	};
+
+	private final ContentHashIndex index;
+	private final ImportLedger ledger;
+	private final ImportBatcher batcher;
+	private final ArchiveStage archive;
+	private final List<String> servers;
+	private final ExecutorService executor;
+
+	/**
+	 * @param servers names of the servers files may have been imported to
+	 */
+	public ChecksumStage(ContentHashIndex index, ImportLedger ledger, ImportBatcher batcher,
+			List<String> servers) {
+		this(index, ledger, batcher, servers, null);
+	}
+
+	/**
+	 * @param servers names of the servers files may have been imported to
+	 * @param archive where skipped duplicates go on to, or null to leave
+	 *        them
+	 */
+	public ChecksumStage(ContentHashIndex index, ImportLedger ledger, ImportBatcher batcher,
+			List<String> servers, ArchiveStage archive) {
+		this.index = index;
+		this.servers = new ArrayList<String>(servers);
+		this.archive = archive;
+		this.ledger = ledger;
+		this.batcher = batcher;
+		this.executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int count = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "checksum-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/**
+	 * Hash a file in the background, then either skip it as a duplicate or
+	 * pass it on to be imported.
+	 */
+	public void submit(final ImportItem item) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long started = System.currentTimeMillis();
+				try {
+					item.hash = sha1(item.file);
+					PipelineMetrics.get().record(PipelineMetrics.Stage.CHECKSUM,
+						System.currentTimeMillis() - started);
+				} catch (IOException e) {
+					// Let the import itself report the problem
+					batcher.add(item);
+					return;
+				}
+				Path original = null;
+				for (String server : servers) {
+					ImportConfig target = item.root == null ? item.target : item.root.targetOn(server);
+					original = index.find(item.hash, server, target);
+					if (original != null) {
+						break;
+					}
+				}
+				if (original == null) {
+					batcher.add(item);
+					return;
+				}
+				Log.info("File '%s' has the same content as '%s', skipping.",
+					item.file, original);
+				index.skipped(item);
+				try {
+					ledger.record(item.file, ImportLedger.State.IMPORTED, item.size, item.modified,
+						ledger.ids(original));
+				} catch (IOException e) {
+					Log.error(e, "Could not record '%s' as imported.", item.file);
+					item.done();
+					return;
+				}
+				item.finished(LeaseCoordinator.State.IMPORTED);
+				if (archive != null) {
+					archive.submitDuplicate(item);
+				} else {
+					item.done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop taking files, waiting up to {@link ImportWorkerPool#SHUTDOWN_WAIT}
+	 * for the files being hashed to be dealt with, as they still write to the ledger.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(ImportWorkerPool.SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * SHA-1 of a file's content as a lower case hex string.
+	 */
+	public static String sha1(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buffer = BUFFER.get();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer.clear();
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
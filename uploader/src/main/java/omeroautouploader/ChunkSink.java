@@ -0,0 +1,53 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The receiving end of a {@link ChunkedTransfer}: somewhere the chunks of a
+ * file can be written, in any order and from several threads at once.
+ */
+public interface ChunkSink {
+
+	/**
+	 * Start, or resume, receiving a file. Returns the SHA-1 of every chunk
+	 * the far end already holds for this transfer, by chunk index; empty if
+	 * it holds none or cannot tell.
+	 */
+	Map<Integer, String> open(String id, long size, int chunkSize) throws IOException;
+
+	/**
+	 * Start writing one chunk. Its data is then passed to the writer a block
+	 * at a time, in order.
+	 */
+	Writer write(String id, int index, long offset, long length) throws IOException;
+
+	/**
+	 * Every chunk has been acknowledged. Returns the SHA-1 of the whole
+	 * file as the far end holds it, or null if it does not report one.
+	 */
+	String finish(String id) throws IOException;
+
+	/**
+	 * Sends the blocks of one chunk.
+	 */
+	interface Writer {
+		/**
+		 * Send all of the block's remaining bytes.
+		 */
+		void write(ByteBuffer block) throws IOException;
+
+		/**
+		 * Every block has been written. Returns the SHA-1 of what the far
+		 * end received, or null if it does not report one, in which case
+		 * the chunk is taken as acknowledged.
+		 */
+		String complete() throws IOException;
+
+		/**
+		 * Give up on the chunk after a failure; the writer is not used again.
+		 */
+		void abort();
+	}
+}
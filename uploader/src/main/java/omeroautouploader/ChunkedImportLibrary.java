@@ -0,0 +1,69 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.util.TimeEstimator;
+import ome.util.checksum.ChecksumProviderFactory;
+import omero.ServerError;
+import omero.grid.ImportProcessPrx;
+import omero.model.ChecksumAlgorithm;
+
+/**
+ * An import library that uploads each file with a {@link ChunkedTransfer}
+ * rather than as one serial read, checksum and write loop. The file is
+ * read once, with reading, hashing and sending overlapped, and large files
+ * go over several streams at once. The SHA-1 the transfer computed is what
+ * the import process then verifies against the server's own. Servers set up
+ * to checksum with another algorithm get the library's own upload instead.
+ *
+ * The SHA-1 of each file sent by a transfer is also noted by path, so the
+ * file can be checked against it again after the import.
+ *
+ * Uploads do not report per-byte progress to the library's observers; the
+ * start and end of each import are still reported.
+ */
+public class ChunkedImportLibrary extends ImportLibrary {
+
+	/** The only checksum a {@link ChunkedTransfer} computes. */
+	static final String SHA1 = "SHA1-160";
+
+	private final ChunkedTransfer transfer;
+	private final Map<String, String> uploaded;
+
+	/**
+	 * @param uploaded where the SHA-1 of each file sent is put, by path
+	 */
+	public ChunkedImportLibrary(OMEROMetadataStoreClient store, OMEROWrapper reader, ChunkedTransfer transfer,
+			Map<String, String> uploaded) {
+		super(store, reader);
+		this.transfer = transfer;
+		this.uploaded = uploaded;
+	}
+
+	/**
+	 * Upload one file of a fileset, returning its checksum for the import
+	 * process to verify. SHA1-160 is the checksum the import process asks
+	 * for unless the server is configured otherwise, in which case the file
+	 * is sent the library's own way and nothing is noted for it.
+	 */
+	@Override
+	public String uploadFile(ImportProcessPrx proc, String[] srcFiles, int index, ChecksumProviderFactory cpf,
+			TimeEstimator estimator, byte[] buf) throws ServerError, IOException {
+		ChecksumAlgorithm algorithm = proc.getImportSettings().checksumAlgorithm;
+		if (algorithm == null || !SHA1.equals(algorithm.getValue().getValue())) {
+			return super.uploadFile(proc, srcFiles, index, cpf, estimator, buf);
+		}
+		Path file = Paths.get(srcFiles[index]);
+		String id = ChunkedTransfer.id(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+		String sha1 = transfer.send(file, id, new RawFileStoreSink(proc, index));
+		uploaded.put(UploadToOmero.key(srcFiles[index]), sha1);
+		return sha1;
+	}
+}
@@ -0,0 +1,420 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a file as fixed size chunks over several parallel streams, so that
+ * one slow or dropped connection neither serialises nor restarts the whole
+ * file.
+ *
+ * The file is read once, front to back, into a small pool of direct
+ * buffers. A reader, a hasher and the senders work on different blocks at
+ * the same time: while one block is read the one before it is hashed and
+ * earlier ones are on the wire, so the disk and the network are busy
+ * together. The hasher keeps both the whole file's SHA-1 and each chunk's,
+ * and hands each chunk's blocks to whichever stream is free; a slow stream
+ * holds on to pool buffers until the reader has to wait for it.
+ *
+ * Each chunk's SHA-1 is compared with what the far end reports receiving,
+ * and the whole file's with what it reports holding at the end. A chunk
+ * that fails or arrives corrupted is read and sent again. When a transfer
+ * is started again after being interrupted, the chunks the far end already
+ * holds with the right checksum are hashed but not sent, so it resumes
+ * where it was cut off.
+ */
+public class ChunkedTransfer {
+
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	public static final int DEFAULT_STREAMS = 4;
+
+	/** Size of the pooled buffers the file is read into. */
+	public static final int BLOCK_SIZE = 1024 * 1024;
+
+	/** Times a chunk is sent before the transfer is given up. */
+	public static final int MAX_ATTEMPTS = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Marks the end of the blocks for the hasher. */
+	private static final Block END = new Block(-1, null, false, false);
+
+	/** Tells a sender that the rest of its chunk will not be read. */
+	private static final ByteBuffer CANCELLED = ByteBuffer.allocate(0);
+
+	private final int chunkSize;
+	private final int streams;
+	private final ExecutorService stages;
+	private final BlockingQueue<ByteBuffer> pool = new LinkedBlockingQueue<ByteBuffer>();
+
+	public ChunkedTransfer() {
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_STREAMS);
+	}
+
+	public ChunkedTransfer(int chunkSize, int streams) {
+		if (chunkSize < 1 || streams < 1) {
+			throw new IllegalArgumentException("Chunk size and streams must be positive");
+		}
+		this.chunkSize = chunkSize;
+		this.streams = streams;
+		// Two blocks in flight per stream, one being read and one being hashed
+		for (int i = 0; i < 2 * streams + 2; i++) {
+			pool.add(ByteBuffer.allocateDirect(BLOCK_SIZE));
+		}
+		this.stages = Executors.newFixedThreadPool(streams + 1, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chunk-transfer-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * An id for a transfer of this version of a file, the same each time
+	 * it is tried so that the far end can recognise a resumed transfer.
+	 */
+	public static String id(Path file, long size, long modified) {
+		MessageDigest md = sha1();
+		md.update((file.toAbsolutePath() + "\n" + size + "\n" + modified).getBytes(UTF8));
+		return ChecksumStage.hex(md.digest());
+	}
+
+	/**
+	 * Send a file, returning its SHA-1 once every chunk has been
+	 * acknowledged. One file at a time.
+	 */
+	public synchronized String send(Path file, String id, ChunkSink sink) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			int count = (int) ((size + chunkSize - 1) / chunkSize);
+			Map<Integer, String> held = sink.open(id, size, chunkSize);
+			List<Integer> chunks = new ArrayList<Integer>(count);
+			for (int i = 0; i < count; i++) {
+				chunks.add(i);
+			}
+
+			MessageDigest whole = sha1();
+			Queue<Integer> failed = new ConcurrentLinkedQueue<Integer>();
+			AtomicReference<IOException> error = new AtomicReference<IOException>();
+			int resumed = pass(channel, size, id, sink, chunks, whole, held, failed, error);
+			if (resumed > 0) {
+				Log.info("Resumed '%s' with %d of %d chunks already sent.", file, resumed, count);
+			}
+			String local = ChecksumStage.hex(whole.digest());
+
+			Map<Integer, String> none = Collections.emptyMap();
+			for (int attempt = 2; !failed.isEmpty(); attempt++) {
+				if (attempt > MAX_ATTEMPTS) {
+					throw error.get() != null ? error.get() : new IOException("Could not send " + file);
+				}
+				List<Integer> again = new ArrayList<Integer>(failed);
+				failed.clear();
+				pass(channel, size, id, sink, again, null, none, failed, error);
+			}
+
+			String remote = sink.finish(id);
+			if (remote != null && !remote.equals(local)) {
+				throw new IOException("'" + file + "' arrived corrupted: sent " + local + ", received " + remote);
+			}
+			return local;
+		}
+	}
+
+	/**
+	 * Stop the stage threads.
+	 */
+	public void shutdown() {
+		stages.shutdown();
+	}
+
+	/**
+	 * Read the given chunks once, hashing every block and sending those of
+	 * chunks the far end does not already hold. Chunks that could not be
+	 * sent, or that the far end holds with the wrong checksum, are added to
+	 * failed. Returns how many held chunks were found to be intact.
+	 */
+	private int pass(FileChannel channel, long size, String id, ChunkSink sink, List<Integer> chunks,
+			MessageDigest whole, Map<Integer, String> held, Queue<Integer> failed,
+			AtomicReference<IOException> error) throws IOException {
+		BlockingQueue<Block> hashing = new LinkedBlockingQueue<Block>();
+		BlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+		AtomicInteger resumed = new AtomicInteger();
+		int senders = Math.min(streams, chunks.size());
+		List<Future<Void>> running = new ArrayList<Future<Void>>();
+		running.add(stages.submit(new Hasher(hashing, jobs, size, whole, held, failed, resumed, senders)));
+		for (int i = 0; i < senders; i++) {
+			running.add(stages.submit(new Sender(jobs, id, sink, failed, error)));
+		}
+		try {
+			try {
+				for (int chunk : chunks) {
+					long start = (long) chunk * chunkSize;
+					long end = Math.min(size, start + chunkSize);
+					for (long position = start; position < end; position += BLOCK_SIZE) {
+						ByteBuffer block = pool.take();
+						boolean queued = false;
+						try {
+							block.clear();
+							block.limit((int) Math.min(BLOCK_SIZE, end - position));
+							while (block.hasRemaining()) {
+								if (channel.read(block, position + block.position()) < 0) {
+									throw new IOException("File shrank while it was being sent");
+								}
+							}
+							block.flip();
+							hashing.add(new Block(chunk, block, position == start, position + BLOCK_SIZE >= end));
+							queued = true;
+						} finally {
+							// the pool is shared by every transfer, so a failed read must not use one up
+							if (!queued) {
+								pool.add(block);
+							}
+						}
+					}
+				}
+			} finally {
+				hashing.add(END);
+			}
+			for (Future<Void> f : running) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted sending " + id, e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException
+				? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		return resumed.get();
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * One pooled buffer's worth of a chunk.
+	 */
+	private static class Block {
+		final int chunk;
+		final ByteBuffer data;
+		final boolean first;
+		final boolean last;
+
+		Block(int chunk, ByteBuffer data, boolean first, boolean last) {
+			this.chunk = chunk;
+			this.data = data;
+			this.first = first;
+			this.last = last;
+		}
+	}
+
+	/**
+	 * A chunk to send, with its blocks arriving as they are hashed.
+	 */
+	private static class Job {
+		final int index;
+		final long offset;
+		final long length;
+		final BlockingQueue<ByteBuffer> blocks = new LinkedBlockingQueue<ByteBuffer>();
+		/** Set before the last block is added. */
+		volatile String sha1;
+
+		Job(int index, long offset, long length) {
+			this.index = index;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Marks the end of the jobs for a sender. */
+	private static final Job NO_MORE = new Job(-1, 0L, 0L);
+
+	private class Hasher implements Callable<Void> {
+		private final BlockingQueue<Block> hashing;
+		private final BlockingQueue<Job> jobs;
+		private final long size;
+		private final MessageDigest whole;
+		private final Map<Integer, String> held;
+		private final Queue<Integer> failed;
+		private final AtomicInteger resumed;
+		private final int senders;
+
+		Hasher(BlockingQueue<Block> hashing, BlockingQueue<Job> jobs, long size, MessageDigest whole,
+				Map<Integer, String> held, Queue<Integer> failed, AtomicInteger resumed, int senders) {
+			this.hashing = hashing;
+			this.jobs = jobs;
+			this.size = size;
+			this.whole = whole;
+			this.held = held;
+			this.failed = failed;
+			this.resumed = resumed;
+			this.senders = senders;
+		}
+
+		@Override
+		public Void call() throws InterruptedException {
+			MessageDigest chunk = sha1();
+			Job job = null;
+			try {
+				for (;;) {
+					Block b = hashing.take();
+					if (b == END) {
+						if (job != null && job.sha1 == null) {
+							// the reader gave up part way through this chunk
+							job.blocks.add(CANCELLED);
+						}
+						return null;
+					}
+					if (b.first) {
+						chunk.reset();
+						job = null;
+						if (!held.containsKey(b.chunk)) {
+							long offset = (long) b.chunk * chunkSize;
+							job = new Job(b.chunk, offset, Math.min(chunkSize, size - offset));
+							jobs.add(job);
+						}
+					}
+					chunk.update(b.data.duplicate());
+					if (whole != null) {
+						whole.update(b.data.duplicate());
+					}
+					String sha1 = b.last ? ChecksumStage.hex(chunk.digest()) : null;
+					if (job != null) {
+						if (b.last) {
+							job.sha1 = sha1;
+						}
+						job.blocks.add(b.data);
+					} else {
+						pool.add(b.data);
+						if (b.last) {
+							if (sha1.equals(held.get(b.chunk))) {
+								resumed.incrementAndGet();
+							} else {
+								failed.add(b.chunk);
+							}
+						}
+					}
+				}
+			} finally {
+				for (int i = 0; i < senders; i++) {
+					jobs.add(NO_MORE);
+				}
+			}
+		}
+	}
+
+	private class Sender implements Callable<Void> {
+		private final BlockingQueue<Job> jobs;
+		private final String id;
+		private final ChunkSink sink;
+		private final Queue<Integer> failed;
+		private final AtomicReference<IOException> error;
+
+		Sender(BlockingQueue<Job> jobs, String id, ChunkSink sink, Queue<Integer> failed,
+				AtomicReference<IOException> error) {
+			this.jobs = jobs;
+			this.id = id;
+			this.sink = sink;
+			this.failed = failed;
+			this.error = error;
+		}
+
+		@Override
+		public Void call() throws InterruptedException {
+			for (;;) {
+				Job job = jobs.take();
+				if (job == NO_MORE) {
+					return null;
+				}
+				IOException e = send(job);
+				if (e != null) {
+					error.set(e);
+					failed.add(job.index);
+				}
+			}
+		}
+
+		/**
+		 * Send a chunk's blocks as they arrive, returning every block to the
+		 * pool whether or not the chunk gets through.
+		 */
+		private IOException send(Job job) throws InterruptedException {
+			IOException e = null;
+			ChunkSink.Writer writer = null;
+			try {
+				writer = sink.write(id, job.index, job.offset, job.length);
+			} catch (IOException x) {
+				e = x;
+			} catch (RuntimeException x) {
+				e = new IOException(x);
+			}
+			long sent = 0;
+			while (sent < job.length) {
+				ByteBuffer block = job.blocks.take();
+				if (block == CANCELLED) {
+					if (writer != null) {
+						writer.abort();
+					}
+					return new IOException("Reading chunk " + job.index + " of " + id + " failed");
+				}
+				sent += block.remaining();
+				if (e == null) {
+					try {
+						writer.write(block);
+					} catch (IOException x) {
+						e = x;
+						writer.abort();
+					} catch (RuntimeException x) {
+						e = new IOException(x);
+						writer.abort();
+					}
+				}
+				pool.add(block);
+			}
+			if (e == null) {
+				try {
+					String remote = writer.complete();
+					if (remote != null && !remote.equals(job.sha1)) {
+						e = new IOException("Chunk " + job.index + " of " + id + " arrived corrupted");
+					}
+				} catch (IOException x) {
+					e = x;
+				} catch (RuntimeException x) {
+					e = new IOException(x);
+				}
+			}
+			return e;
+		}
+	}
+}
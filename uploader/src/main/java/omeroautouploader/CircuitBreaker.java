@@ -0,0 +1,131 @@
+package omeroautouploader;
+
+/**
+ * Stops the import workers from sending to a server that keeps failing.
+ *
+ * After a number of failures in a row the breaker opens, and nothing is
+ * sent to the server. Once a cool-down has passed, one worker is let
+ * through to probe the server while the others keep away. If the probe
+ * succeeds the breaker closes and everyone carries on; if not, it opens
+ * again for twice as long, up to a maximum. The {@link ImportRouter} keeps
+ * one breaker per server and asks each in turn whether it may be used.
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	/** What a caller may do with the server right now. */
+	public enum Turn { IMPORT, PROBE, WAIT }
+
+	public static final int DEFAULT_FAILURES = 5;
+	public static final long DEFAULT_COOL_DOWN = 5000L;
+	public static final long DEFAULT_MAX_COOL_DOWN = 5L * 60 * 1000;
+
+	private final int threshold;
+	private final long initialCoolDown;
+	private final long maxCoolDown;
+	private final String name;
+	private final Runnable onClose;
+	private State state = State.CLOSED;
+	private int failures;
+	private long coolDown;
+	private long openUntil;
+
+	/**
+	 * A breaker with the default limits.
+	 *
+	 * @param name the server, for the log
+	 * @param onClose run whenever the breaker closes again, without the
+	 *        breaker's lock held
+	 */
+	public CircuitBreaker(String name, Runnable onClose) {
+		this(name, DEFAULT_FAILURES, DEFAULT_COOL_DOWN, DEFAULT_MAX_COOL_DOWN, onClose);
+	}
+
+	/**
+	 * @param name the server, for the log
+	 * @param threshold failures in a row that open the breaker
+	 * @param coolDown first wait before probing, in milliseconds
+	 * @param maxCoolDown longest wait before probing, in milliseconds
+	 * @param onClose run whenever the breaker closes again
+	 */
+	public CircuitBreaker(String name, int threshold, long coolDown, long maxCoolDown, Runnable onClose) {
+		this.name = name;
+		this.threshold = threshold;
+		this.initialCoolDown = coolDown;
+		this.maxCoolDown = maxCoolDown;
+		this.coolDown = coolDown;
+		this.onClose = onClose;
+	}
+
+	/**
+	 * Whether imports may go ahead now. {@link Turn#PROBE} means the caller
+	 * has been picked to probe the server, and must report the outcome with
+	 * {@link #success} or {@link #failure}; until then everyone else is told
+	 * to wait.
+	 */
+	public synchronized Turn tryTurn() {
+		if (state == State.CLOSED) {
+			return Turn.IMPORT;
+		}
+		if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+			state = State.HALF_OPEN;
+			return Turn.PROBE;
+		}
+		return Turn.WAIT;
+	}
+
+	/**
+	 * Milliseconds until the server may be probed, 0 if it may be used now,
+	 * or -1 while a probe is under way.
+	 */
+	public synchronized long waitTime() {
+		switch (state) {
+		case OPEN:
+			return Math.max(0L, openUntil - System.currentTimeMillis());
+		case HALF_OPEN:
+			return -1L;
+		default:
+			return 0L;
+		}
+	}
+
+	/**
+	 * An import or probe reached the server.
+	 */
+	public void success() {
+		boolean reopened;
+		synchronized (this) {
+			reopened = state != State.CLOSED;
+			state = State.CLOSED;
+			failures = 0;
+			coolDown = initialCoolDown;
+		}
+		if (reopened) {
+			Log.info("Server %s is back, resuming its imports.", name);
+			onClose.run();
+		}
+	}
+
+	/**
+	 * An import or probe could not reach the server.
+	 */
+	public synchronized void failure() {
+		if (state == State.HALF_OPEN) {
+			coolDown = Math.min(maxCoolDown, coolDown * 2);
+			open();
+		} else if (state == State.CLOSED && ++failures >= threshold) {
+			Log.warn("%d imports to server %s failed in a row, pausing its imports.", failures, name);
+			open();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + coolDown;
+	}
+}
@@ -0,0 +1,110 @@
+package omeroautouploader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Persistent record of the content that has already been imported, keyed by
+ * SHA-1 together with the server and the target it went to, so that a copy
+ * of an acquisition under another name can be skipped before Bio-Formats or
+ * the network ever see it. The same content sent to another dataset, or to
+ * another server, is a new import and is not skipped.
+ *
+ * The index is a plain text file with one tab separated "hash size server
+ * target path" line per import, appended to as imports complete and read
+ * back in full on startup. Lines of older indexes, which did not say where
+ * the content went, are ignored.
+ */
+public class ContentHashIndex {
+
+	/** Name of the index in a {@link StateDirectory}. */
+	public static final String FILE_NAME = "content.index";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Map<String, Path> hashes = new HashMap<String, Path>();
+	private final BufferedWriter out;
+	private final AtomicLong importsSaved = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	public ContentHashIndex(Path index) throws IOException {
+		Path parent = index.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		if (Files.exists(index)) {
+			try (BufferedReader in = Files.newBufferedReader(index, UTF8)) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t", 5);
+					if (fields.length == 5) {
+						hashes.put(fields[0] + "\t" + fields[2] + "\t" + fields[3], Paths.get(fields[4]));
+					}
+				}
+			}
+		}
+		out = Files.newBufferedWriter(index, UTF8,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * The file this content was first imported from to the given target on
+	 * the given server, or null if it has not been imported there yet.
+	 */
+	public synchronized Path find(String hash, String server, ImportConfig target) {
+		return hashes.get(hash + "\t" + server + "\t" + target(target));
+	}
+
+	/**
+	 * Remember that an item's content is now in the given target on the
+	 * given server.
+	 */
+	public synchronized void add(ImportItem item, String server, ImportConfig target) throws IOException {
+		if (item.hash == null) {
+			return;
+		}
+		String where = server + "\t" + target(target);
+		if (hashes.containsKey(item.hash + "\t" + where)) {
+			return;
+		}
+		hashes.put(item.hash + "\t" + where, item.file);
+		out.write(item.hash + "\t" + item.size + "\t" + where + "\t" + item.file);
+		out.newLine();
+		out.flush();
+	}
+
+	/**
+	 * Count an import that was skipped because its content was a duplicate.
+	 */
+	public void skipped(ImportItem item) {
+		importsSaved.incrementAndGet();
+		bytesSaved.addAndGet(item.size);
+	}
+
+	public long getImportsSaved() {
+		return importsSaved.get();
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	private static String target(ImportConfig target) {
+		return target == null ? "-" : target.targetClass.get() + ":" + target.targetId.get();
+	}
+}
@@ -0,0 +1,75 @@
+package omeroautouploader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Files that failed to import on every attempt, kept so that they are not
+ * tried again on every start and can be looked at by hand.
+ *
+ * Each is a line of tab separated fields appended to a text file: the
+ * time it was given up on, its size, modification time, the number of
+ * attempts, the last error and its path. A file is only tried again once
+ * it changes, or once its line is removed from the store while the
+ * uploader is stopped.
+ */
+public class DeadLetterStore {
+
+	/** Name of the store in a {@link StateDirectory}. */
+	public static final String FILE_NAME = "dead-letters.tsv";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final BufferedWriter out;
+	private final Map<Path, long[]> index = new HashMap<Path, long[]>();
+
+	public DeadLetterStore(Path file) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		if (Files.exists(file)) {
+			for (String line : Files.readAllLines(file, UTF8)) {
+				String[] fields = line.split("\t", 6);
+				if (fields.length == 6) {
+					index.put(Paths.get(fields[5]),
+						new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]) });
+				}
+			}
+		}
+		out = Files.newBufferedWriter(file, UTF8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Give up on a file.
+	 */
+	public synchronized void add(ImportItem item, int attempts, String error) throws IOException {
+		out.write(System.currentTimeMillis() + "\t" + item.size + "\t" + item.modified + "\t"
+			+ attempts + "\t" + error.replaceAll("\\s+", " ") + "\t" + item.file + "\n");
+		out.flush();
+		index.put(item.file, new long[] { item.size, item.modified });
+	}
+
+	/**
+	 * True if this exact version of the file has been given up on.
+	 */
+	public synchronized boolean contains(Path path, long size, long modified) {
+		long[] e = index.get(path);
+		return e != null && e[0] == size && e[1] == modified;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,126 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the size and modification time of the files in each watched
+ * directory, so that after an OVERFLOW the directory can be listed again and
+ * only the files that are new or have changed need to be looked at.
+ *
+ * Only the directory named by the overflowing key is listed, never the
+ * whole tree. Thread safe, as the startup scan fills it in from several
+ * threads while the watch loop is already running.
+ */
+public class DirectorySnapshots {
+
+	private final Map<Path, Map<Path, Entry>> snapshots = new HashMap<Path, Map<Path, Entry>>();
+
+	/**
+	 * Record the current state of a file.
+	 */
+	public synchronized void record(Path file, BasicFileAttributes attrs) {
+		if (!attrs.isRegularFile()) {
+			return;
+		}
+		Map<Path, Entry> files = snapshots.get(file.getParent());
+		if (files == null) {
+			files = new HashMap<Path, Entry>();
+			snapshots.put(file.getParent(), files);
+		}
+		files.put(file.getFileName(), new Entry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+	}
+
+	/**
+	 * Record the current state of a file, ignoring it if it has gone.
+	 */
+	public void record(Path file) {
+		try {
+			record(file, Files.readAttributes(file, BasicFileAttributes.class));
+		} catch (IOException e) {
+			remove(file);
+		}
+	}
+
+	public synchronized void remove(Path file) {
+		Map<Path, Entry> files = snapshots.get(file.getParent());
+		if (files != null) {
+			files.remove(file.getFileName());
+		}
+	}
+
+	/**
+	 * Drop everything known about a directory that is no longer watched.
+	 */
+	public synchronized void forget(Path dir) {
+		snapshots.remove(dir);
+	}
+
+	/**
+	 * List a directory again and return the files that are new or whose size
+	 * or modification time differ from the snapshot. The snapshot is brought
+	 * up to date as a side effect, including dropping files that have gone.
+	 */
+	public List<Path> reconcile(Path dir) throws IOException {
+		return reconcile(dir, null);
+	}
+
+	/**
+	 * As {@link #reconcile(Path)}, also adding every subdirectory found to
+	 * the given list if it is not null.
+	 */
+	public List<Path> reconcile(Path dir, List<Path> subdirs) throws IOException {
+		Map<Path, Entry> before;
+		synchronized (this) {
+			Map<Path, Entry> files = snapshots.get(dir);
+			before = files == null ? null : new HashMap<Path, Entry>(files);
+		}
+		Map<Path, Entry> after = new HashMap<Path, Entry>();
+		List<Path> changed = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Removed while we were listing
+					continue;
+				}
+				if (attrs.isDirectory() && subdirs != null && !Files.isSymbolicLink(file)) {
+					subdirs.add(file);
+				}
+				if (!attrs.isRegularFile()) {
+					continue;
+				}
+				Entry now = new Entry(attrs.size(), attrs.lastModifiedTime().toMillis());
+				Path name = file.getFileName();
+				after.put(name, now);
+				Entry then = before == null ? null : before.get(name);
+				if (then == null || then.size != now.size || then.modified != now.modified) {
+					changed.add(file);
+				}
+			}
+		}
+		synchronized (this) {
+			snapshots.put(dir, after);
+		}
+		return changed;
+	}
+
+	private static class Entry {
+		final long size;
+		final long modified;
+
+		Entry(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Decides when a newly seen file has stopped being written to.
+ *
+ * Files are keyed by their full path and kept in a queue ordered by the time
+ * they are next due a check. When a file comes due its size and modification
+ * time are read again; it is only reported as stable if neither has changed
+ * since the previous look.
+ *
+ * The quiet period is learned per directory: it starts short so that small
+ * files go through quickly, grows whenever a file in that directory turns
+ * out to still be growing, and shrinks back slowly after clean checks. It
+ * never drops below {@link #MIN_WINDOW}, the coarsest modification time
+ * granularity in common use (2 s on FAT and some SMB shares), and a file is
+ * not reported stable until its modification time is at least that old, so
+ * a write within the same timestamp tick is never missed.
+ *
+ * Not thread safe; it is meant to be driven from the watch loop only.
+ */
+public class FileStabilityTracker {
+
+	/** Shortest quiet period, and youngest modification time, for a stable file. */
+	public static final long MIN_WINDOW = 2000L;
+	/** Quiet period given to a directory we know nothing about yet. */
+	public static final long INITIAL_WINDOW = MIN_WINDOW;
+	public static final long MAX_WINDOW = 60000L;
+
+	private final PriorityQueue<Check> checks = new PriorityQueue<Check>();
+	private final Map<Path, Pending> pending = new HashMap<Path, Pending>();
+	private final Map<Path, Long> windows = new HashMap<Path, Long>();
+	private final PipelineMetrics metrics = PipelineMetrics.get();
+	/** Files this tracker has counted in the shared tracked files metric. */
+	private int reported;
+
+	/**
+	 * Start, or restart, tracking a file that has just been created or changed.
+	 */
+	public void touch(Path file, long now) {
+		Pending p = pending.get(file);
+		boolean seen = p != null;
+		if (!seen) {
+			p = new Pending(file, now);
+			pending.put(file, p);
+			report();
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			p.checked = true;
+			p.size = attrs.size();
+			p.modified = attrs.lastModifiedTime().toMillis();
+			if (!seen) {
+				metrics.record(PipelineMetrics.Stage.DETECTION, now - p.modified);
+			}
+		} catch (IOException e) {
+			p.checked = false;
+		}
+		schedule(p, now + window(file));
+	}
+
+	/**
+	 * Stop tracking a file, e.g. because it was deleted.
+	 */
+	public void forget(Path file) {
+		pending.remove(file);
+		report();
+	}
+
+	/**
+	 * Stop tracking every file, e.g. because the watch loop has stopped.
+	 */
+	public void clear() {
+		pending.clear();
+		checks.clear();
+		report();
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Time at which the next file is due a check, or {@link Long#MAX_VALUE}
+	 * when nothing is being tracked.
+	 */
+	public long nextDeadline() {
+		Check c;
+		while ((c = checks.peek()) != null && c.isStale()) {
+			checks.poll();
+		}
+		return c == null ? Long.MAX_VALUE : c.deadline;
+	}
+
+	/**
+	 * Check every file whose deadline has passed and return the ones that
+	 * have stopped changing. Those are no longer tracked afterwards.
+	 */
+	public List<Path> expire(long now) {
+		List<Path> stable = new ArrayList<Path>();
+		Check c;
+		while ((c = checks.peek()) != null && c.deadline <= now) {
+			checks.poll();
+			if (c.isStale()) {
+				continue;
+			}
+			Pending p = c.pending;
+			long size;
+			long modified;
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(p.file, BasicFileAttributes.class);
+				size = attrs.size();
+				modified = attrs.lastModifiedTime().toMillis();
+			} catch (NoSuchFileException e) {
+				pending.remove(p.file);
+				continue;
+			} catch (IOException e) {
+				// Probably still locked by the writer, look again later
+				grow(p.file);
+				schedule(p, now + window(p.file));
+				continue;
+			}
+			if (p.checked && size == p.size && modified == p.modified && now - modified >= MIN_WINDOW) {
+				pending.remove(p.file);
+				shrink(p.file);
+				stable.add(p.file);
+				metrics.record(PipelineMetrics.Stage.STABILITY_WAIT, now - p.firstSeen);
+				continue;
+			}
+			if (p.checked && (size != p.size || modified != p.modified)) {
+				// Still being written: this directory needs a longer quiet period
+				grow(p.file);
+			}
+			p.checked = true;
+			p.size = size;
+			p.modified = modified;
+			schedule(p, now + window(p.file));
+		}
+		report();
+		return stable;
+	}
+
+	private void report() {
+		metrics.trackedFiles(pending.size() - reported);
+		reported = pending.size();
+	}
+
+	private void schedule(Pending p, long deadline) {
+		p.deadline = deadline;
+		checks.add(new Check(p, deadline));
+	}
+
+	private long window(Path file) {
+		Long w = windows.get(file.getParent());
+		return w == null ? INITIAL_WINDOW : w;
+	}
+
+	private void grow(Path file) {
+		windows.put(file.getParent(), Math.min(MAX_WINDOW, window(file) * 2));
+	}
+
+	private void shrink(Path file) {
+		long w = window(file);
+		windows.put(file.getParent(), Math.max(MIN_WINDOW, w - w / 4));
+	}
+
+	private static class Pending {
+		final Path file;
+		final long firstSeen;
+		long deadline;
+		boolean checked;
+		long size;
+		long modified;
+
+		Pending(Path file, long firstSeen) {
+			this.file = file;
+			this.firstSeen = firstSeen;
+		}
+	}
+
+	/**
+	 * Queue entry for a scheduled check. Rescheduling a file leaves its old
+	 * entry in the queue; such entries are recognised as stale and skipped.
+	 */
+	private class Check implements Comparable<Check> {
+		final Pending pending;
+		final long deadline;
+
+		Check(Pending pending, long deadline) {
+			this.pending = pending;
+			this.deadline = deadline;
+		}
+
+		boolean isStale() {
+			return pending.deadline != deadline
+				|| FileStabilityTracker.this.pending.get(pending.file) != pending;
+		}
+
+		@Override
+		public int compareTo(Check o) {
+			return deadline < o.deadline ? -1 : (deadline == o.deadline ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import loci.formats.ImageReader;
+
+/**
+ * Decides whether a file is something Bio-Formats can import.
+ *
+ * The file name is matched, ignoring case, against the suffixes of every
+ * Bio-Formats reader, so ".Tif" and ".ome.tiff" are recognised as well as
+ * ".tif". Files without a known suffix have the first few bytes of their
+ * header compared against the signatures of common formats. Results that
+ * needed a read are cached per path.
+ */
+public class FormatClassifier {
+
+	public enum Kind {
+		/** Bio-Formats should be able to read it. */
+		IMAGE,
+		/** Not an image, or not one we want. */
+		IGNORED,
+		/** Unknown suffix and the header is not written yet; ask again later. */
+		UNKNOWN
+	}
+
+	/** Suffixes Bio-Formats would accept but which are never acquisitions. */
+	private static final Set<String> IGNORED_SUFFIXES =
+		new HashSet<String>(Arrays.asList("txt", "text", "csv", "log", "ini", "xml", "bfmemo", "lease"));
+
+	/** Number of header bytes read when the suffix is not enough. */
+	private static final int HEADER = 132;
+
+	private static final int MAX_CACHED = 10000;
+
+	private static final byte[][] SIGNATURES = {
+		{ 'I', 'I', 42, 0 },		// TIFF, little endian
+		{ 'M', 'M', 0, 42 },		// TIFF, big endian
+		{ 'I', 'I', 43, 0 },		// BigTIFF, little endian
+		{ 'M', 'M', 0, 43 },		// BigTIFF, big endian
+		{ (byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1 },	// OLE2, e.g. ZVI
+		{ (byte) 0x89, 'P', 'N', 'G' },
+		{ (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },	// JPEG
+		{ (byte) 0x89, 'H', 'D', 'F' },	// HDF5, e.g. Imaris
+		{ 'C', 'Z', 'I', 'S', 'R', 'A', 'W', 'F' },	// Zeiss CZI
+	};
+
+	private final Set<String> suffixes;
+	private final Map<Path, Kind> cache = new LinkedHashMap<Path, Kind>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Kind> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	public FormatClassifier() {
+		this(new ImageReader().getSuffixes());
+	}
+
+	public FormatClassifier(String[] readerSuffixes) {
+		Set<String> table = new HashSet<String>();
+		for (String suffix : readerSuffixes) {
+			String s = suffix.toLowerCase(Locale.ENGLISH);
+			if (!IGNORED_SUFFIXES.contains(s)) {
+				table.add(s);
+			}
+		}
+		this.suffixes = Collections.unmodifiableSet(table);
+	}
+
+	public Kind classify(Path file) {
+		String name = file.getFileName().toString();
+		if (name.startsWith(".")) {
+			// Hidden, and usually some other program's temporary file
+			return Kind.IGNORED;
+		}
+		String lower = name.toLowerCase(Locale.ENGLISH);
+		boolean ignored = false;
+		for (int dot = lower.indexOf('.'); dot >= 0; dot = lower.indexOf('.', dot + 1)) {
+			String suffix = lower.substring(dot + 1);
+			if (suffixes.contains(suffix)) {
+				return Kind.IMAGE;
+			}
+			ignored |= IGNORED_SUFFIXES.contains(suffix);
+		}
+		if (ignored) {
+			return Kind.IGNORED;
+		}
+		synchronized (cache) {
+			Kind known = cache.get(file);
+			if (known != null) {
+				return known;
+			}
+		}
+		Kind kind = sniff(file);
+		if (kind != Kind.UNKNOWN) {
+			synchronized (cache) {
+				cache.put(file, kind);
+			}
+		}
+		return kind;
+	}
+
+	public boolean isImage(Path file) {
+		return classify(file) == Kind.IMAGE;
+	}
+
+	/**
+	 * Drop anything cached about a file, e.g. because it was deleted.
+	 */
+	public void forget(Path file) {
+		synchronized (cache) {
+			cache.remove(file);
+		}
+	}
+
+	private Kind sniff(Path file) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (header.hasRemaining() && channel.read(header) > 0) {
+				// keep reading until the header is full or the file ends
+			}
+		} catch (IOException e) {
+			return Kind.UNKNOWN;
+		}
+		int length = header.position();
+		for (byte[] signature : SIGNATURES) {
+			if (startsWith(header, length, 0, signature)) {
+				return Kind.IMAGE;
+			}
+		}
+		// DICOM puts its marker after a 128 byte preamble
+		if (startsWith(header, length, 128, new byte[] { 'D', 'I', 'C', 'M' })) {
+			return Kind.IMAGE;
+		}
+		return length < HEADER ? Kind.UNKNOWN : Kind.IGNORED;
+	}
+
+	private static boolean startsWith(ByteBuffer header, int length, int offset, byte[] signature) {
+		if (length < offset + signature.length) {
+			return false;
+		}
+		for (int i = 0; i < signature.length; i++) {
+			if (header.get(offset + i) != signature[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
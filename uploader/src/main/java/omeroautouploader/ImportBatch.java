@@ -0,0 +1,54 @@
+package omeroautouploader;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Stable files from one directory, and so for one target, that will be sent
+ * to the server in a single candidate scan and import call.
+ */
+public class ImportBatch {
+	public final Path directory;
+	public final WatchRoot root;
+	public final ImportConfig target;
+	public final List<ImportItem> items = new ArrayList<ImportItem>();
+	final long created;
+	long queued;
+	long bytes;
+
+	public ImportBatch(Path directory, ImportConfig target, long created) {
+		this(directory, null, target, created);
+	}
+
+	public ImportBatch(Path directory, WatchRoot root, ImportConfig target, long created) {
+		this.directory = directory;
+		this.root = root;
+		this.target = target;
+		this.created = created;
+	}
+
+	void add(ImportItem item) {
+		items.add(item);
+		bytes += item.size;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String[] paths() {
+		String[] paths = new String[items.size()];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = items.get(i).file.toString();
+		}
+		return paths;
+	}
+
+	@Override
+	public String toString() {
+		return items.size() + " file(s) from " + directory;
+	}
+}
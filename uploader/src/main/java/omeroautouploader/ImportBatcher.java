@@ -0,0 +1,108 @@
+package omeroautouploader;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups stable files from the same directory so that many small files are
+ * imported with one candidate scan and one import call rather than one each.
+ * A directory belongs to a single watch root, so a batch also has a single
+ * import target.
+ *
+ * A batch is sent on as soon as it holds {@link #maxFiles} files or
+ * {@link #maxBytes} bytes, or once its first file has waited
+ * {@link #maxDelay} milliseconds, whichever comes first.
+ */
+public class ImportBatcher {
+
+	public static final int DEFAULT_MAX_FILES = 50;
+	public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+	public static final long DEFAULT_MAX_DELAY = 2000L;
+
+	private final ImportWorkerPool workers;
+	private final int maxFiles;
+	private final long maxBytes;
+	private final long maxDelay;
+	private final Map<Path, ImportBatch> open = new HashMap<Path, ImportBatch>();
+	private final ScheduledExecutorService timer;
+
+	public ImportBatcher(ImportWorkerPool workers) {
+		this(workers, DEFAULT_MAX_FILES, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY);
+	}
+
+	public ImportBatcher(ImportWorkerPool workers, int maxFiles, long maxBytes, long maxDelay) {
+		this.workers = workers;
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "import-batcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long tick = Math.max(1L, maxDelay / 4);
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushExpired(System.currentTimeMillis());
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Add a stable file to the batch for its directory.
+	 */
+	public void add(ImportItem item) {
+		ImportBatch full = null;
+		synchronized (this) {
+			Path dir = item.file.getParent();
+			ImportBatch batch = open.get(dir);
+			if (batch == null) {
+				batch = new ImportBatch(dir, item.root, item.target, System.currentTimeMillis());
+				open.put(dir, batch);
+			}
+			batch.add(item);
+			if (batch.items.size() >= maxFiles || batch.bytes >= maxBytes) {
+				open.remove(dir);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			workers.submit(full);
+		}
+	}
+
+	/**
+	 * Send on every batch, however small, e.g. when shutting down.
+	 */
+	public void flush() {
+		flushExpired(Long.MAX_VALUE);
+	}
+
+	public void shutdown() {
+		timer.shutdown();
+		flush();
+	}
+
+	private void flushExpired(long now) {
+		synchronized (this) {
+			Iterator<ImportBatch> it = open.values().iterator();
+			while (it.hasNext()) {
+				ImportBatch batch = it.next();
+				if (now - batch.created >= maxDelay) {
+					it.remove();
+					workers.submit(batch);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package omeroautouploader;
+
+import java.nio.file.Path;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * A stable file on its way to the server, along with what was known about
+ * it when it stopped changing.
+ */
+public class ImportItem {
+	public final Path file;
+	public final long size;
+	public final long modified;
+
+	/** The watch root the file was found under. */
+	public final WatchRoot root;
+
+	/** Configuration naming where on the server the file should go. */
+	public final ImportConfig target;
+
+	/** SHA-1 of the content, filled in by the {@link ChecksumStage}. */
+	String hash;
+
+	/** Imports of the file that have failed so far. */
+	int failures;
+
+	/** The queue that let the file out, told once it has been dealt with. */
+	ImportQueue queue;
+
+	/** This node's lease on the file, if folders are shared with other nodes. */
+	LeaseCoordinator lease;
+
+	public ImportItem(Path file, long size, long modified, WatchRoot root) {
+		this.file = file;
+		this.size = size;
+		this.modified = modified;
+		this.root = root;
+		this.target = root == null ? null : root.target;
+	}
+
+	/**
+	 * The file has been imported, has failed or was skipped, so another
+	 * may take its place in the pipeline.
+	 */
+	void done() {
+		if (lease != null) {
+			// neither imported nor given up on, so free for another node
+			lease.release(this);
+		}
+		if (queue != null) {
+			queue.done();
+			queue = null;
+		}
+	}
+
+	/**
+	 * The file has been imported, or given up on, for good; other nodes
+	 * sharing its folder are told so through its lease.
+	 */
+	void finished(LeaseCoordinator.State state) {
+		if (lease != null) {
+			lease.complete(this, state);
+		}
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
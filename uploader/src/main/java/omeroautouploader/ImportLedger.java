@@ -0,0 +1,344 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of what has happened to every file the uploader has
+ * seen, so that a restart neither imports a file twice nor forgets one that
+ * was still waiting.
+ *
+ * The journal is a memory-mapped file of records, each holding the file's
+ * path, size, modification time, state and any OMERO ids returned by the
+ * import. A record's length is written last and followed by a zero marker,
+ * and each record carries a CRC, so a record torn by a crash is simply
+ * ignored on the next start. Opening the journal replays it into an
+ * in-memory index holding the latest record for each path.
+ *
+ * Records of imports and failures are forced to disk as they are written,
+ * so a crash cannot forget that a file is on the server. When the journal
+ * fills up and most of its records have been superseded, or it would grow
+ * past what can be mapped, the index is written out as a snapshot, one
+ * record per file, over the other of two journal files, and a pointer file
+ * naming the journal in use is then switched to it in a single rename.
+ * Neither journal is ever deleted, truncated or renamed over: Java only
+ * unmaps a file when its buffer is garbage collected, and until then
+ * Windows refuses to do any of those to it.
+ */
+public class ImportLedger {
+
+	public enum State { DETECTED, STABLE, IMPORTING, IMPORTED, FAILED }
+
+	/** Name of the journal in a {@link StateDirectory}. */
+	public static final String FILE_NAME = "ledger.journal";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long INITIAL_SIZE = 16L * 1024 * 1024;
+	private static final long[] NO_IDS = new long[0];
+
+	private final Path journal;
+	/** The journal in use, either the one given or its alternate. */
+	private Path current;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private final Map<Path, Entry> index = new HashMap<Path, Entry>();
+	/** Records in the journal, superseded ones included. */
+	private int records;
+	private boolean closed;
+
+	public ImportLedger(Path journal) throws IOException {
+		Path parent = journal.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		this.journal = journal;
+		this.current = current(journal);
+		open();
+		map(Math.max(INITIAL_SIZE, channel.size()));
+		replay();
+	}
+
+	/**
+	 * Record a change of state for a file. Pass -1 for size and
+	 * modification time if they are not known yet.
+	 */
+	public synchronized void record(Path path, State state, long size, long modified, long[] ids) throws IOException {
+		if (closed) {
+			throw new IOException("Import ledger is closed");
+		}
+		if (ids == null) {
+			ids = NO_IDS;
+		}
+		Entry entry = new Entry(state, size, modified, ids);
+		byte[] name = path.toString().getBytes(UTF8);
+		long needed = space(name, entry);
+		if (buffer.remaining() < needed) {
+			long grown = Math.max(buffer.capacity() * 2L, buffer.position() + needed);
+			if (records > 2 * index.size() || grown > Integer.MAX_VALUE) {
+				compact();
+			}
+			if (buffer.remaining() < needed) {
+				map(Math.max(buffer.capacity() * 2L, buffer.position() + needed));
+			}
+		}
+		put(buffer, name, entry);
+		records++;
+		index.put(path, entry);
+		if (state == State.IMPORTED || state == State.FAILED) {
+			buffer.force();
+		}
+	}
+
+	public void record(Path path, State state, long size, long modified) throws IOException {
+		record(path, state, size, modified, null);
+	}
+
+	/**
+	 * True if this exact version of the file has already been imported.
+	 */
+	public synchronized boolean isImported(Path path, long size, long modified) {
+		Entry e = index.get(path);
+		return e != null && e.state == State.IMPORTED && e.size == size && e.modified == modified;
+	}
+
+	public synchronized State state(Path path) {
+		Entry e = index.get(path);
+		return e == null ? null : e.state;
+	}
+
+	/**
+	 * OMERO ids recorded for a file's last import, or null if none.
+	 */
+	public synchronized long[] ids(Path path) {
+		Entry e = index.get(path);
+		return e == null ? null : e.ids;
+	}
+
+	/**
+	 * Files that were seen but never finished importing, e.g. because the
+	 * service stopped while they were waiting or being sent.
+	 */
+	public synchronized List<Path> unfinished() {
+		List<Path> paths = new ArrayList<Path>();
+		for (Map.Entry<Path, Entry> e : index.entrySet()) {
+			State s = e.getValue().state;
+			if (s == State.DETECTED || s == State.STABLE || s == State.IMPORTING) {
+				paths.add(e.getKey());
+			}
+		}
+		return paths;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Flush the journal to disk and release it.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer.force();
+		channel.close();
+		file.close();
+	}
+
+	/**
+	 * Replace the journal with one holding only the latest record for each
+	 * file.
+	 */
+	private void compact() throws IOException {
+		long bytes = 4;
+		List<byte[]> names = new ArrayList<byte[]>(index.size());
+		List<Entry> entries = new ArrayList<Entry>(index.size());
+		for (Map.Entry<Path, Entry> e : index.entrySet()) {
+			byte[] name = e.getKey().toString().getBytes(UTF8);
+			names.add(name);
+			entries.add(e.getValue());
+			bytes += space(name, e.getValue()) - 4;
+		}
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IOException("Import ledger is full");
+		}
+		long size = Math.min(Math.max(INITIAL_SIZE, bytes * 2), Integer.MAX_VALUE);
+		Path next = current.equals(journal) ? alternate(journal) : journal;
+		try (RandomAccessFile out = new RandomAccessFile(next.toFile(), "rw")) {
+			// Written over what the last compaction but one left there, which
+			// the end marker after the snapshot's last record hides
+			MappedByteBuffer snapshot = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			snapshot.putInt(0, 0);
+			for (int i = 0; i < names.size(); i++) {
+				put(snapshot, names.get(i), entries.get(i));
+			}
+			snapshot.force();
+		}
+		buffer.force();
+		channel.close();
+		file.close();
+		point(next);
+		current = next;
+		Log.info("Compacted the import ledger from %d records to %d.", records, names.size());
+		records = names.size();
+		open();
+		buffer = null;
+		map(size);
+		buffer.position((int) bytes - 4);
+	}
+
+	private void open() throws IOException {
+		file = new RandomAccessFile(current.toFile(), "rw");
+		channel = file.getChannel();
+	}
+
+	/**
+	 * The journal named by the pointer file, or the given one if there is
+	 * no pointer yet.
+	 */
+	private static Path current(Path journal) throws IOException {
+		Path pointer = pointer(journal);
+		if (Files.exists(pointer)) {
+			String name = new String(Files.readAllBytes(pointer), UTF8).trim();
+			if (name.equals(alternate(journal).getFileName().toString())) {
+				return alternate(journal);
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * Make the given journal the one in use, in one rename of a file that
+	 * is never mapped.
+	 */
+	private void point(Path next) throws IOException {
+		Path pointer = pointer(journal);
+		Path written = pointer.resolveSibling(pointer.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(written, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.write(ByteBuffer.wrap(next.getFileName().toString().getBytes(UTF8)));
+			out.force(true);
+		}
+		Files.move(written, pointer, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static Path alternate(Path journal) {
+		return journal.resolveSibling(journal.getFileName() + ".alt");
+	}
+
+	private static Path pointer(Path journal) {
+		return journal.resolveSibling(journal.getFileName() + ".current");
+	}
+
+	/**
+	 * Bytes a record takes, with its length, CRC and the end marker after it.
+	 */
+	private static long space(byte[] name, Entry entry) {
+		return 4 + length(name, entry) + 4 + 4;
+	}
+
+	private static int length(byte[] name, Entry entry) {
+		return 1 + 8 + 8 + 4 + name.length + 4 + 8 * entry.ids.length;
+	}
+
+	/**
+	 * Write a record at the buffer's position, leaving the position at the
+	 * end marker after it.
+	 */
+	private static void put(ByteBuffer buffer, byte[] name, Entry entry) {
+		int length = length(name, entry);
+		int start = buffer.position();
+		buffer.position(start + 4);
+		int body = buffer.position();
+		buffer.put((byte) entry.state.ordinal());
+		buffer.putLong(entry.size);
+		buffer.putLong(entry.modified);
+		buffer.putInt(name.length);
+		buffer.put(name);
+		buffer.putInt(entry.ids.length);
+		for (long id : entry.ids) {
+			buffer.putLong(id);
+		}
+		buffer.putInt(crc(buffer, body, length));
+		int end = buffer.position();
+		buffer.putInt(0);
+		// Publish the record only once all of it is in place
+		buffer.putInt(start, length);
+		buffer.position(end);
+	}
+
+	private void map(long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Import ledger is full");
+		}
+		int position = buffer == null ? 0 : buffer.position();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.position(position);
+	}
+
+	private void replay() {
+		int position = 0;
+		while (buffer.capacity() - position >= 8) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.capacity() - position - 8) {
+				break;
+			}
+			int body = position + 4;
+			if (buffer.getInt(body + length) != crc(buffer, body, length)) {
+				break;
+			}
+			buffer.position(body);
+			State state = State.values()[buffer.get()];
+			long size = buffer.getLong();
+			long modified = buffer.getLong();
+			byte[] name = new byte[buffer.getInt()];
+			buffer.get(name);
+			long[] ids = new long[buffer.getInt()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = buffer.getLong();
+			}
+			index.put(Paths.get(new String(name, UTF8)), new Entry(state, size, modified, ids));
+			records++;
+			position = body + length + 4;
+		}
+		buffer.position(position);
+	}
+
+	private static int crc(ByteBuffer buffer, int offset, int length) {
+		CRC32 crc = new CRC32();
+		for (int i = offset; i < offset + length; i++) {
+			crc.update(buffer.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	private static class Entry {
+		final State state;
+		final long size;
+		final long modified;
+		final long[] ids;
+
+		Entry(State state, long size, long modified, long[] ids) {
+			this.state = state;
+			this.size = size;
+			this.modified = modified;
+			this.ids = ids;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Everything between a file becoming stable and it being on the server:
+ * the import queue, checksumming, batching and the import workers, together
+ * with the ledger, content index and dead letters they keep. One pipeline can be shared by
+ * any number of watchers, and its folders with other uploaders through a
+ * {@link LeaseCoordinator}.
+ */
+public class ImportPipeline {
+
+	private final StateDirectory state;
+	private final ImportLedger ledger;
+	private final ContentHashIndex hashes;
+	private final DeadLetterStore deadLetters;
+	private final ImportWorkerPool workers;
+	private final ImportBatcher batcher;
+	private final ChecksumStage checksums;
+	private final ArchiveStage archive;
+	private final ImportQueue queue;
+	private final LeaseCoordinator leases;
+	private final Thread feeder;
+
+	/**
+	 * Sets up a pipeline logging in with the given configuration and
+	 * importing on the given number of worker threads.
+	 */
+	public ImportPipeline(ImportConfig config, int importWorkers) throws IOException {
+		this(config, importWorkers, new UploadScheduler());
+	}
+
+	/**
+	 * As above, with the given scheduler deciding the order and pace of
+	 * uploads.
+	 */
+	public ImportPipeline(ImportConfig config, int importWorkers, UploadScheduler scheduler) throws IOException {
+		this(config, importWorkers, scheduler, StateDirectory.lock(StateDirectory.defaultPath(null)));
+	}
+
+	/**
+	 * As above, keeping the ledger, index, dead letters and queue in the
+	 * given folder, which is released on shutdown.
+	 */
+	public ImportPipeline(ImportConfig config, int importWorkers, UploadScheduler scheduler,
+			StateDirectory state) throws IOException {
+		this(config, importWorkers, scheduler, state,
+			new ImportQueue(state.resolve(ImportQueue.DIRECTORY_NAME)));
+	}
+
+	/**
+	 * As above, with stable files waiting in the given queue until the
+	 * pipeline has room for them.
+	 */
+	public ImportPipeline(ImportConfig config, int importWorkers, UploadScheduler scheduler,
+			StateDirectory state, ImportQueue queue) throws IOException {
+		this(config, importWorkers, scheduler, state, queue, new RetryPolicy());
+	}
+
+	/**
+	 * As above, with failed files tried again as the given policy says.
+	 */
+	public ImportPipeline(ImportConfig config, int importWorkers, UploadScheduler scheduler,
+			StateDirectory state, ImportQueue queue, RetryPolicy retry) throws IOException {
+		this(config, importWorkers, scheduler, state, queue, retry,
+			new ArchiveStage(ArchiveStage.Mode.NONE, null));
+	}
+
+	/**
+	 * As above, with imported files checked and moved or deleted by the
+	 * given stage.
+	 */
+	public ImportPipeline(ImportConfig config, int importWorkers, UploadScheduler scheduler,
+			StateDirectory state, ImportQueue queue, RetryPolicy retry, ArchiveStage archive)
+			throws IOException {
+		this(config, new ReaderCache(), importWorkers, scheduler, state, queue, retry, archive);
+	}
+
+	private ImportPipeline(ImportConfig config, ReaderCache readerCache, int importWorkers,
+			UploadScheduler scheduler, StateDirectory state, ImportQueue queue, RetryPolicy retry,
+			ArchiveStage archive) throws IOException {
+		this(ImportRouter.single(ImportRouter.Endpoint.server(config.hostname.get(), 1, config, readerCache)),
+			state, readerCache, importWorkers, scheduler, queue, retry, archive);
+	}
+
+	/**
+	 * As above, with imports spread over the servers of the given router.
+	 */
+	public ImportPipeline(ImportRouter router, StateDirectory state, ReaderCache readerCache,
+			int importWorkers, UploadScheduler scheduler, ImportQueue queue, RetryPolicy retry,
+			ArchiveStage archive) throws IOException {
+		this(router, state, readerCache, importWorkers, scheduler, queue, retry, archive, null);
+	}
+
+	/**
+	 * As above, with each file claimed through the given coordinator before
+	 * it goes any further, so that other nodes watching the same folders do
+	 * not import it too; null if no other node does.
+	 */
+	public ImportPipeline(ImportRouter router, StateDirectory state, ReaderCache readerCache,
+			int importWorkers, UploadScheduler scheduler, final ImportQueue queue, RetryPolicy retry,
+			ArchiveStage archive, final LeaseCoordinator leases) throws IOException {
+		this.state = state;
+		try {
+			this.ledger = new ImportLedger(state.resolve(ImportLedger.FILE_NAME));
+			this.hashes = new ContentHashIndex(state.resolve(ContentHashIndex.FILE_NAME));
+			this.deadLetters = new DeadLetterStore(state.resolve(DeadLetterStore.FILE_NAME));
+		} catch (IOException | RuntimeException e) {
+			// Let the next attempt have the folder
+			state.close();
+			throw e;
+		}
+		Log.info("Keeping state in %s.", state);
+		PipelineMetrics.get().register();
+		this.archive = archive;
+		this.workers = new ImportWorkerPool(router, readerCache, importWorkers, ledger, hashes, scheduler,
+			retry, deadLetters, archive);
+		this.batcher = new ImportBatcher(workers);
+		List<String> servers = new ArrayList<String>();
+		for (ImportRouter.Endpoint endpoint : router.getEndpoints()) {
+			servers.add(endpoint.name);
+		}
+		this.checksums = new ChecksumStage(hashes, ledger, batcher, servers, archive);
+		this.queue = queue;
+		this.leases = leases;
+		if (leases != null) {
+			leases.setListener(new LeaseCoordinator.Listener() {
+				@Override
+				public void available(ImportItem item) {
+					submit(item);
+				}
+			});
+		}
+		this.feeder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ImportItem item;
+					while ((item = queue.take()) != null) {
+						boolean claimed = false;
+						try {
+							claimed = leases == null || leases.claim(item);
+						} catch (RuntimeException e) {
+							// Keep feeding the rest; the file is seen again on the next start
+							Log.error(e, "Could not claim '%s'.", item.file);
+						}
+						if (claimed) {
+							checksums.submit(item);
+						} else {
+							item.done();
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "import-queue");
+		feeder.setDaemon(true);
+		feeder.start();
+	}
+
+	public ImportLedger getLedger() {
+		return ledger;
+	}
+
+	public DeadLetterStore getDeadLetters() {
+		return deadLetters;
+	}
+
+	/**
+	 * Send a stable file on its way to the server. Blocks while the queue
+	 * is full.
+	 */
+	public void submit(ImportItem item) {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop accepting work, send what is already batched and release the
+	 * ledger, index and state folder. Files still queued are left to the next start.
+	 */
+	public void shutdown() throws IOException {
+		queue.shutdown();
+		// it may be waiting for a claim to be finished
+		feeder.interrupt();
+		try {
+			feeder.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		checksums.shutdown();
+		batcher.shutdown();
+		workers.shutdown();
+		archive.shutdown();
+		if (leases != null) {
+			leases.shutdown();
+		}
+		ledger.close();
+		hashes.close();
+		deadLetters.close();
+		state.close();
+		Log.info("Duplicates skipped: %d files, %d bytes.",
+			hashes.getImportsSaved(), hashes.getBytesSaved());
+		ReaderCache cache = workers.getReaderCache();
+		Log.info("Reader cache: %d hits, %d misses.",
+			cache.getHits(), cache.getMisses());
+		workers.getRouter().logSummary();
+		Log.flush();
+	}
+}
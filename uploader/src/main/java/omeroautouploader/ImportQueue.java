@@ -0,0 +1,294 @@
+package omeroautouploader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded queue of stable files between the watchers and the rest of the
+ * pipeline, so that a long server outage costs disk space rather than heap.
+ *
+ * Up to a high-water mark, files wait in memory. Past it, new files are
+ * appended to a log of segment files on disk until the backlog has been
+ * read back, which keeps them in order. Each record is the file's path,
+ * size, modification time and root, about as compact as the ledger's own.
+ * A segment is deleted once it has been read, and the log once it is
+ * empty.
+ *
+ * Only a fixed number of files are let out at once; each one counts until
+ * it is imported, failed or skipped as a duplicate, when {@link #done} is
+ * called. Once the log on disk reaches its limit, {@link #put} blocks, which
+ * holds back the scans and the watch loop until the uploads catch up.
+ *
+ * The log is only a spill area and is cleared on start: the
+ * {@link ImportLedger} holds every queued file as stable, and the startup
+ * scan hands them on again.
+ */
+public class ImportQueue {
+
+	/** Name of the log's folder in a {@link StateDirectory}. */
+	public static final String DIRECTORY_NAME = "spool";
+
+	/** Files held in memory before spilling to disk. */
+	public static final int DEFAULT_MEMORY = 10000;
+
+	/** Files being checksummed, batched or imported at once. */
+	public static final int DEFAULT_IN_FLIGHT = 2000;
+
+	/** Bytes of log on disk before new files are held back. */
+	public static final long DEFAULT_MAX_SPILL = 1024L * 1024 * 1024;
+
+	private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+	private static final String SUFFIX = ".segment";
+
+	private final Path dir;
+	private final int memory;
+	private final int maxInFlight;
+	private final long maxSpill;
+	private final PipelineMetrics metrics = PipelineMetrics.get();
+	private final ArrayDeque<ImportItem> items = new ArrayDeque<ImportItem>();
+	private final List<WatchRoot> roots = new ArrayList<WatchRoot>();
+
+	/** Records on disk not yet read back. */
+	private long spilled;
+	/** Size of the segments not yet deleted. */
+	private long spillBytes;
+	private long head;
+	private long tail;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private int inFlight;
+	private boolean closed;
+
+	public ImportQueue(Path dir) throws IOException {
+		this(dir, DEFAULT_MEMORY, DEFAULT_IN_FLIGHT, DEFAULT_MAX_SPILL);
+	}
+
+	/**
+	 * @param dir where to keep the log
+	 * @param memory files held in memory before spilling to disk
+	 * @param maxInFlight files let out at once
+	 * @param maxSpill bytes of log before {@link #put} blocks
+	 */
+	public ImportQueue(Path dir, int memory, int maxInFlight, long maxSpill) throws IOException {
+		if (memory < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("Import queue needs room for at least one file");
+		}
+		this.dir = dir;
+		this.memory = memory;
+		this.maxInFlight = maxInFlight;
+		this.maxSpill = maxSpill;
+		Files.createDirectories(dir);
+		deleteSegments();
+	}
+
+	/**
+	 * Queue a file, waiting while the log on disk is full. Files queued
+	 * after {@link #shutdown} are dropped, as the ledger still has them.
+	 */
+	public synchronized void put(ImportItem item) throws InterruptedException {
+		while (!closed && (spilled > 0 || items.size() >= memory) && spillBytes >= maxSpill) {
+			wait();
+		}
+		if (closed) {
+			return;
+		}
+		if (spilled == 0 && items.size() < memory) {
+			items.add(item);
+		} else {
+			try {
+				spill(item);
+			} catch (IOException e) {
+				// Keep it in memory if that keeps the order, else leave it
+				// to the ledger and the next start
+				Log.error(e, "Could not spill '%s' to disk.", item.file);
+				if (spilled == 0) {
+					items.add(item);
+				}
+			}
+		}
+		gauge();
+		notifyAll();
+	}
+
+	/**
+	 * The oldest queued file, waiting until there is one and fewer than the
+	 * limit are in flight. Returns null once shut down.
+	 */
+	public synchronized ImportItem take() throws InterruptedException {
+		for (;;) {
+			while (!closed && (inFlight >= maxInFlight || items.isEmpty() && spilled == 0)) {
+				wait();
+			}
+			if (closed) {
+				return null;
+			}
+			ImportItem item = items.poll();
+			if (item == null) {
+				try {
+					item = unspill();
+				} catch (IOException e) {
+					Log.error("Spilled files could not be read back (%s); "
+						+ "they are picked up again on the next start.", e);
+					reset();
+					gauge();
+					continue;
+				}
+			}
+			item.queue = this;
+			inFlight++;
+			gauge();
+			notifyAll();
+			return item;
+		}
+	}
+
+	/**
+	 * A file let out by {@link #take} has been dealt with.
+	 */
+	public synchronized void done() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Number of files waiting, in memory and on disk.
+	 */
+	public synchronized long size() {
+		return items.size() + spilled;
+	}
+
+	/**
+	 * Number of files waiting on disk.
+	 */
+	public synchronized long spilled() {
+		return spilled;
+	}
+
+	/**
+	 * Stop handing out files, release anyone waiting and remove the log.
+	 */
+	public synchronized void shutdown() {
+		closed = true;
+		items.clear();
+		reset();
+		gauge();
+		notifyAll();
+	}
+
+	private void spill(ImportItem item) throws IOException {
+		if (out == null || out.size() >= SEGMENT_SIZE) {
+			if (out != null) {
+				out.close();
+				tail++;
+			}
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(segment(tail).toFile(), true)));
+		}
+		int index = -1;
+		if (item.root != null) {
+			index = roots.indexOf(item.root);
+			if (index < 0) {
+				index = roots.size();
+				roots.add(item.root);
+			}
+		}
+		int before = out.size();
+		out.writeUTF(item.file.toString());
+		out.writeLong(item.size);
+		out.writeLong(item.modified);
+		out.writeInt(index);
+		spillBytes += out.size() - before;
+		spilled++;
+	}
+
+	private ImportItem unspill() throws IOException {
+		if (head == tail) {
+			out.flush();
+		}
+		if (in == null) {
+			in = open(head);
+		}
+		for (;;) {
+			try {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				int index = in.readInt();
+				spilled--;
+				if (spilled == 0) {
+					reset();
+				}
+				return new ImportItem(Paths.get(path), size, modified, index < 0 ? null : roots.get(index));
+			} catch (EOFException e) {
+				if (head == tail) {
+					throw e;
+				}
+			}
+			// Finished with this segment
+			in.close();
+			Path done = segment(head);
+			spillBytes -= Files.size(done);
+			Files.delete(done);
+			head++;
+			if (head == tail) {
+				out.flush();
+			}
+			in = open(head);
+		}
+	}
+
+	/**
+	 * Forget everything on disk and start the log afresh.
+	 */
+	private void reset() {
+		try {
+			if (in != null) {
+				in.close();
+			}
+			if (out != null) {
+				out.close();
+			}
+			deleteSegments();
+		} catch (IOException e) {
+			Log.error(e, "Could not clear the spilled files in %s.", dir);
+		}
+		in = null;
+		out = null;
+		spilled = 0;
+		spillBytes = 0;
+		head = ++tail;
+	}
+
+	private void deleteSegments() throws IOException {
+		try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path segment : segments) {
+				Files.delete(segment);
+			}
+		}
+	}
+
+	private DataInputStream open(long number) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(segment(number).toFile())));
+	}
+
+	private Path segment(long number) {
+		return dir.resolve(String.format("%012d%s", number, SUFFIX));
+	}
+
+	private void gauge() {
+		metrics.setPendingFiles(items.size(), spilled);
+	}
+}
@@ -0,0 +1,345 @@
+package omeroautouploader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Spreads imports over one or more OMERO servers.
+ *
+ * Each server is an {@link Endpoint} with a weight, its own
+ * {@link CircuitBreaker}, and a running average of how long its imports
+ * take per megabyte, measured as they finish. For each batch, two different
+ * servers whose breakers are closed are drawn at random in proportion to
+ * their weights, and the batch goes to the one expected to finish it
+ * sooner: the imports it already has under way, plus this one, times its
+ * average cost, over its weight. A server that slows down or starts to fail
+ * is given less work, and once its breaker opens none at all until a probe
+ * finds it well again. The first worker to ask after its cool-down probes
+ * it; workers only wait when every server is open.
+ *
+ * Each worker keeps its own {@link Uploader} for each server, created on
+ * first use, so every server gets its own set of sessions.
+ */
+public class ImportRouter {
+
+	/** Share of the newest measurement in each server's average cost. */
+	static final double DECAY = 0.2;
+
+	private static final double MB = 1024.0 * 1024.0;
+
+	/**
+	 * Checks that a server can be reached, for the worker picked to probe it.
+	 */
+	public interface Prober {
+		void probe(Endpoint endpoint) throws Exception;
+	}
+
+	/**
+	 * One server imports can be sent to.
+	 */
+	public static class Endpoint {
+		public final String name;
+		public final int weight;
+		final Uploader.Factory uploaders;
+		CircuitBreaker breaker;
+
+		// Guarded by the router
+		int inFlight;
+		/** Average milliseconds per import and megabyte, 0 until measured. */
+		double cost;
+		long imports;
+		long failures;
+
+		/**
+		 * @param name the server's name, for the log and per-server settings
+		 * @param weight share of the work relative to the other servers
+		 * @param uploaders makes a worker's uploader for this server
+		 */
+		public Endpoint(String name, int weight, Uploader.Factory uploaders) {
+			if (weight < 1) {
+				throw new IllegalArgumentException("Server " + name + " needs a weight of at least 1");
+			}
+			this.name = name;
+			this.weight = weight;
+			this.uploaders = uploaders;
+		}
+
+		/**
+		 * A server logged in to with the given configuration.
+		 */
+		public static Endpoint server(String name, int weight, final ImportConfig config,
+				final ReaderCache readerCache) {
+			return new Endpoint(name, weight, new Uploader.Factory() {
+				@Override
+				public Uploader create() throws Exception {
+					return new UploadToOmero(config, readerCache);
+				}
+			});
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final List<Endpoint> endpoints;
+	private final PipelineMetrics metrics = PipelineMetrics.get();
+	private final Random random = new Random();
+	private volatile Runnable onRecovery;
+	private boolean closed;
+
+	public ImportRouter(List<Endpoint> endpoints) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("Import router needs at least one server");
+		}
+		this.endpoints = new ArrayList<Endpoint>(endpoints);
+		for (Endpoint endpoint : this.endpoints) {
+			endpoint.breaker = new CircuitBreaker(endpoint.name, new Runnable() {
+				@Override
+				public void run() {
+					recovered();
+				}
+			});
+		}
+	}
+
+	/**
+	 * A router that sends everything to the one server.
+	 */
+	public static ImportRouter single(Endpoint endpoint) {
+		return new ImportRouter(Collections.singletonList(endpoint));
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return Collections.unmodifiableList(endpoints);
+	}
+
+	/**
+	 * Run whenever a server comes back, without the router's lock held.
+	 */
+	public void setOnRecovery(Runnable onRecovery) {
+		this.onRecovery = onRecovery;
+	}
+
+	/**
+	 * The server for the next import, waiting while none can be used and
+	 * probing with the given prober any whose cool-down has passed. The
+	 * outcome of the import must be reported with {@link #succeeded} or
+	 * {@link #failed}, or the server given back with {@link #released} if
+	 * nothing was sent. Returns null once shut down.
+	 */
+	public Endpoint choose(Prober prober) throws InterruptedException {
+		for (;;) {
+			Endpoint due;
+			synchronized (this) {
+				for (;;) {
+					if (closed) {
+						return null;
+					}
+					due = due();
+					if (due != null) {
+						break;
+					}
+					Endpoint chosen = pick();
+					if (chosen != null) {
+						chosen.inFlight++;
+						return chosen;
+					}
+					wait(nextProbe());
+				}
+			}
+			try {
+				prober.probe(due);
+			} catch (Exception e) {
+				Log.warn("Server %s still unavailable (%s).", due, e);
+				due.breaker.failure();
+				wake();
+				continue;
+			}
+			due.breaker.success();
+			wake();
+		}
+	}
+
+	/**
+	 * An import reached the server, taking the given time for the given
+	 * number of bytes.
+	 */
+	public void succeeded(Endpoint endpoint, long millis, long bytes) {
+		endpoint.breaker.success();
+		synchronized (this) {
+			endpoint.inFlight--;
+			endpoint.imports++;
+			double sample = millis / (1.0 + bytes / MB);
+			endpoint.cost = endpoint.cost == 0 ? sample : endpoint.cost + DECAY * (sample - endpoint.cost);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * An import was given up before anything was sent, for reasons that say
+	 * nothing about the server.
+	 */
+	public void released(Endpoint endpoint) {
+		synchronized (this) {
+			endpoint.inFlight--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * An import could not reach the server.
+	 */
+	public void failed(Endpoint endpoint) {
+		endpoint.breaker.failure();
+		synchronized (this) {
+			endpoint.inFlight--;
+			endpoint.failures++;
+			// Send less to a server that fails, before its breaker opens
+			endpoint.cost *= 2;
+			notifyAll();
+		}
+		gauge();
+	}
+
+	/**
+	 * True if a server other than the given one can take imports now, so
+	 * that a batch that failed on it can be sent again straight away.
+	 */
+	public synchronized boolean canFailOver(Endpoint failed) {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint != failed && endpoint.breaker.getState() == CircuitBreaker.State.CLOSED) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Release every waiting worker without a server.
+	 */
+	public synchronized void shutdown() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Log what each server has done.
+	 */
+	public synchronized void logSummary() {
+		for (Endpoint endpoint : endpoints) {
+			Log.info("Server %s: %d imports, %d failures, %.0f ms per MB.",
+				endpoint, endpoint.imports, endpoint.failures, endpoint.cost);
+		}
+	}
+
+	/**
+	 * The better of two servers drawn by weight from those with a closed
+	 * breaker, or null if there are none.
+	 */
+	private Endpoint pick() {
+		List<Endpoint> usable = new ArrayList<Endpoint>(endpoints.size());
+		int total = 0;
+		double known = 0;
+		int measured = 0;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.breaker.getState() == CircuitBreaker.State.CLOSED) {
+				usable.add(endpoint);
+				total += endpoint.weight;
+				if (endpoint.cost > 0) {
+					known += endpoint.cost;
+					measured++;
+				}
+			}
+		}
+		if (usable.size() < 2) {
+			return usable.isEmpty() ? null : usable.get(0);
+		}
+		// Servers not yet measured are assumed to be average
+		double average = measured == 0 ? 1.0 : known / measured;
+		Endpoint a = draw(usable, total, null);
+		Endpoint b = draw(usable, total - a.weight, a);
+		return score(a, average) <= score(b, average) ? a : b;
+	}
+
+	/**
+	 * A server drawn in proportion to its weight, leaving out one already
+	 * drawn.
+	 */
+	private Endpoint draw(List<Endpoint> candidates, int total, Endpoint drawn) {
+		int n = random.nextInt(total);
+		Endpoint last = null;
+		for (Endpoint endpoint : candidates) {
+			if (endpoint == drawn) {
+				continue;
+			}
+			n -= endpoint.weight;
+			if (n < 0) {
+				return endpoint;
+			}
+			last = endpoint;
+		}
+		return last;
+	}
+
+	private static double score(Endpoint endpoint, double average) {
+		double cost = endpoint.cost > 0 ? endpoint.cost : average;
+		return (endpoint.inFlight + 1) * cost / endpoint.weight;
+	}
+
+	/**
+	 * A server whose cool-down has passed, now to be probed by the caller.
+	 */
+	private Endpoint due() {
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.breaker.tryTurn() == CircuitBreaker.Turn.PROBE) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Milliseconds until the first cool-down ends, at least 1 should one
+	 * have just ended, or 0 to wait for a probe under way.
+	 */
+	private long nextProbe() {
+		long next = Long.MAX_VALUE;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.breaker.getState() == CircuitBreaker.State.OPEN) {
+				next = Math.min(next, Math.max(1L, endpoint.breaker.waitTime()));
+			}
+		}
+		return next == Long.MAX_VALUE ? 0L : next;
+	}
+
+	private void recovered() {
+		gauge();
+		Runnable r = onRecovery;
+		if (r != null) {
+			r.run();
+		}
+	}
+
+	private synchronized void wake() {
+		notifyAll();
+	}
+
+	/**
+	 * The circuit counts as open only once no server can take imports.
+	 */
+	private void gauge() {
+		boolean open = true;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.breaker.getState() == CircuitBreaker.State.CLOSED) {
+				open = false;
+			}
+		}
+		metrics.setCircuitOpen(open);
+	}
+}
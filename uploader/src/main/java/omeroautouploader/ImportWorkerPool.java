@@ -0,0 +1,379 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Runs imports on a fixed set of worker threads so that the watch loop only
+ * has to hand files over and can keep draining the WatchService.
+ *
+ * Each worker owns its own {@link Uploader} for each server, normally an
+ * {@link UploadToOmero} with its own OMEROMetadataStoreClient, so several
+ * files can be sent at once. Which server each batch goes to is up to the
+ * {@link ImportRouter}.
+ * Progress is written to the {@link ImportLedger} as each file is sent, and
+ * the content of each successful import is added to the {@link ContentHashIndex}
+ * under the server and target it went to.
+ * Which batch goes next, and when, is up to the {@link UploadScheduler}.
+ *
+ * Files that fail are tried again later, as the {@link RetryPolicy} says,
+ * and given up on into the {@link DeadLetterStore} once it says no more.
+ * Imports that throw, as they do when a server cannot be reached, count
+ * against that server's {@link CircuitBreaker}. A batch that failed that
+ * way is sent again straight away if another server is healthy; otherwise
+ * it waits its turn like any other, and once a probe finds a server back
+ * every file waiting to be retried is sent at once. Imported files are
+ * passed on to the {@link ArchiveStage}, if there is one.
+ */
+public class ImportWorkerPool {
+
+	/** Default number of workers, one per available core. */
+	public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+	/** Longest wait, in milliseconds, for imports under way when shutting down. */
+	public static final long SHUTDOWN_WAIT = 60000L;
+
+	private final ImportRouter router;
+	private final ImportLedger ledger;
+	private final ContentHashIndex index;
+	private final ReaderCache readerCache;
+	private final PipelineMetrics metrics = PipelineMetrics.get();
+	private final UploadScheduler scheduler;
+	private final RetryPolicy retry;
+	private final DeadLetterStore deadLetters;
+	private final ArchiveStage archive;
+	private final ScheduledExecutorService retries;
+	private final Map<ImportBatch, ScheduledFuture<?>> waiting = new HashMap<ImportBatch, ScheduledFuture<?>>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	public ImportWorkerPool(final ImportConfig config, int size, ImportLedger ledger, ContentHashIndex index) {
+		this(config, size, ledger, index, new UploadScheduler());
+	}
+
+	public ImportWorkerPool(ImportConfig config, int size, ImportLedger ledger, ContentHashIndex index,
+			UploadScheduler scheduler) {
+		this(config, size, ledger, index, scheduler, new RetryPolicy(), null, null);
+	}
+
+	/**
+	 * @param deadLetters where files are given up on, or null to only mark
+	 *        them as failed in the ledger
+	 * @param archive where imported files go on to, or null to leave them
+	 */
+	public ImportWorkerPool(ImportConfig config, int size, ImportLedger ledger, ContentHashIndex index,
+			UploadScheduler scheduler, RetryPolicy retry, DeadLetterStore deadLetters, ArchiveStage archive) {
+		this(config, new ReaderCache(), size, ledger, index, scheduler, retry, deadLetters, archive);
+	}
+
+	private ImportWorkerPool(final ImportConfig config, final ReaderCache readerCache, int size,
+			ImportLedger ledger, ContentHashIndex index, UploadScheduler scheduler,
+			RetryPolicy retry, DeadLetterStore deadLetters, ArchiveStage archive) {
+		this(ImportRouter.single(ImportRouter.Endpoint.server(config.hostname.get(), 1, config, readerCache)),
+			readerCache, size, ledger, index, scheduler, retry, deadLetters, archive);
+	}
+
+	/**
+	 * A pool whose workers use uploaders from the given factory, e.g. a
+	 * stand-in that never contacts a server.
+	 */
+	public ImportWorkerPool(Uploader.Factory uploaders, ReaderCache readerCache, int size,
+			ImportLedger ledger, ContentHashIndex index) {
+		this(uploaders, readerCache, size, ledger, index, new UploadScheduler());
+	}
+
+	public ImportWorkerPool(Uploader.Factory uploaders, ReaderCache readerCache, int size,
+			ImportLedger ledger, ContentHashIndex index, UploadScheduler scheduler) {
+		this(uploaders, readerCache, size, ledger, index, scheduler, new RetryPolicy(), null, null);
+	}
+
+	public ImportWorkerPool(Uploader.Factory uploaders, ReaderCache readerCache, int size,
+			ImportLedger ledger, ContentHashIndex index, UploadScheduler scheduler,
+			RetryPolicy retry, DeadLetterStore deadLetters, ArchiveStage archive) {
+		this(ImportRouter.single(new ImportRouter.Endpoint("local", 1, uploaders)),
+			readerCache, size, ledger, index, scheduler, retry, deadLetters, archive);
+	}
+
+	/**
+	 * A pool whose workers send each batch to the server the given router
+	 * picks.
+	 */
+	public ImportWorkerPool(ImportRouter router, ReaderCache readerCache, int size,
+			ImportLedger ledger, ContentHashIndex index, UploadScheduler scheduler,
+			RetryPolicy retry, DeadLetterStore deadLetters, ArchiveStage archive) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Worker pool needs at least one worker");
+		}
+		this.router = router;
+		this.readerCache = readerCache;
+		this.ledger = ledger;
+		this.index = index;
+		this.scheduler = scheduler;
+		this.retry = retry;
+		this.deadLetters = deadLetters;
+		this.archive = archive;
+		router.setOnRecovery(new Runnable() {
+			@Override
+			public void run() {
+				retryNow();
+			}
+		});
+		this.retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "import-retry");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (int i = 0; i < size; i++) {
+			Thread t = new Thread(new Worker(), "import-worker-" + i);
+			t.setDaemon(true);
+			workers.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Queue a batch of files for import. Never blocks the caller.
+	 */
+	public void submit(ImportBatch batch) {
+		batch.queued = System.currentTimeMillis();
+		metrics.queued(1);
+		scheduler.add(batch);
+	}
+
+	/**
+	 * Number of batches waiting for a free worker.
+	 */
+	public int pending() {
+		return scheduler.size();
+	}
+
+	/**
+	 * Bio-Formats memo cache shared by the workers.
+	 */
+	public ReaderCache getReaderCache() {
+		return readerCache;
+	}
+
+	public ImportRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * Ask every worker to finish its current import and exit, and wait up to
+	 * {@link #SHUTDOWN_WAIT} for them to do so, so that nothing is written to
+	 * the ledger once it is closed. Files waiting to be retried are left to
+	 * the next start.
+	 */
+	public void shutdown() {
+		retries.shutdownNow();
+		router.shutdown();
+		scheduler.shutdown();
+		long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+		try {
+			for (Thread worker : workers) {
+				long left = deadline - System.currentTimeMillis();
+				if (left > 0) {
+					worker.join(left);
+				}
+				if (worker.isAlive()) {
+					Log.warn("%s is still importing; its outcome will not be recorded.", worker.getName());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Try the failed files of a batch again after the policy's delay.
+	 */
+	private synchronized void retryLater(final ImportBatch batch, long delay) {
+		if (retries.isShutdown()) {
+			return;
+		}
+		metrics.retrying(batch.items.size());
+		waiting.put(batch, retries.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (dequeue(batch)) {
+					submit(batch);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Send every file waiting to be retried now, once a server is back.
+	 */
+	private void retryNow() {
+		List<ImportBatch> due;
+		synchronized (this) {
+			due = new ArrayList<ImportBatch>(waiting.keySet());
+		}
+		for (ImportBatch batch : due) {
+			if (dequeue(batch)) {
+				submit(batch);
+			}
+		}
+	}
+
+	/**
+	 * Take a batch off the retry list, returning false if it has already
+	 * been taken.
+	 */
+	private synchronized boolean dequeue(ImportBatch batch) {
+		ScheduledFuture<?> f = waiting.remove(batch);
+		if (f == null) {
+			return false;
+		}
+		f.cancel(false);
+		metrics.retrying(-batch.items.size());
+		return true;
+	}
+
+	private class Worker implements Runnable, ImportRouter.Prober {
+
+		/** This worker's uploader for each server it has used. */
+		private final Map<ImportRouter.Endpoint, Uploader> connections =
+			new HashMap<ImportRouter.Endpoint, Uploader>();
+
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					ImportBatch batch = scheduler.take();
+					if (batch == null) {
+						break;
+					}
+					metrics.queued(-1);
+					metrics.record(PipelineMetrics.Stage.QUEUE, System.currentTimeMillis() - batch.queued);
+					ImportRouter.Endpoint endpoint = router.choose(this);
+					if (endpoint == null) {
+						// shutting down; the ledger still has the files as stable
+						break;
+					}
+					upload(endpoint, batch);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				for (Uploader connection : connections.values()) {
+					connection.cleanup();
+				}
+			}
+		}
+
+		@Override
+		public void probe(ImportRouter.Endpoint endpoint) throws Exception {
+			connection(endpoint).probe();
+		}
+
+		private Uploader connection(ImportRouter.Endpoint endpoint) throws Exception {
+			Uploader connection = connections.get(endpoint);
+			if (connection == null) {
+				connection = endpoint.uploaders.create();
+				connections.put(endpoint, connection);
+			}
+			return connection;
+		}
+
+		private void upload(ImportRouter.Endpoint endpoint, ImportBatch batch) {
+			Uploader connection = null;
+			boolean failOver = false;
+			String error = "import failed";
+			ImportConfig target = null;
+			try {
+				for (ImportItem item : batch.items) {
+					ledger.record(item.file, ImportLedger.State.IMPORTING, item.size, item.modified);
+				}
+			} catch (IOException e) {
+				// Not the server's fault, so its breaker is left alone; the
+				// files are not sent, as what becomes of them could not be
+				// recorded either, and are found again on the next start
+				Log.error(e, "Could not record the import of %s.", batch);
+				router.released(endpoint);
+				for (ImportItem item : batch.items) {
+					item.done();
+				}
+				return;
+			}
+			try {
+				connection = connection(endpoint);
+				target = batch.root == null ? batch.target : batch.root.targetOn(endpoint.name);
+				long started = System.currentTimeMillis();
+				metrics.importing(batch.items.size());
+				try {
+					if (connection.start(batch.paths(), target) != 0) {
+						Log.warn("Not every file of %s was imported.", batch);
+					}
+				} finally {
+					metrics.importing(-batch.items.size());
+				}
+				// the server answered, even if some files were refused
+				router.succeeded(endpoint, System.currentTimeMillis() - started, batch.getBytes());
+			} catch (Exception e) {
+				Log.error(e, "Import of %s to server %s failed.", batch, endpoint);
+				error = e.toString();
+				router.failed(endpoint);
+				failOver = router.canFailOver(endpoint);
+			}
+			// A failed batch may still have imported some of its files, and
+			// a file only counts as imported once the server has its pixels
+			ImportBatch again = new ImportBatch(batch.directory, batch.root, batch.target,
+				System.currentTimeMillis());
+			int failures = 0;
+			for (ImportItem item : batch.items) {
+				try {
+					long[] ids = connection == null ? new long[0]
+						: connection.getImportedPixelsIds(item.file.toString());
+					if (ids.length > 0) {
+						ledger.record(item.file, ImportLedger.State.IMPORTED, item.size, item.modified, ids);
+						index.add(item, endpoint.name, target);
+						metrics.imported(item.size);
+						item.finished(LeaseCoordinator.State.IMPORTED);
+						if (archive != null) {
+							archive.submit(item, connection.getUploadedHash(item.file.toString()));
+							continue;
+						}
+					} else if (retry.retry(++item.failures)) {
+						ledger.record(item.file, ImportLedger.State.STABLE, item.size, item.modified);
+						again.add(item);
+						failures = Math.max(failures, item.failures);
+						continue;
+					} else {
+						Log.error("Giving up on '%s' after %d attempts.", item.file, item.failures);
+						ledger.record(item.file, ImportLedger.State.FAILED, item.size, item.modified);
+						item.finished(LeaseCoordinator.State.FAILED);
+						if (deadLetters != null) {
+							deadLetters.add(item, item.failures, error);
+						}
+						metrics.error();
+					}
+				} catch (IOException | RuntimeException e) {
+					// Only this file is left undone; the worker and the rest
+					// of the batch carry on
+					Log.error(e, "Could not record the outcome for '%s'.", item.file);
+				}
+				item.done();
+			}
+			if (!again.items.isEmpty()) {
+				if (failOver) {
+					Log.info("Sending %s to another server.", again);
+				}
+				retryLater(again, failOver ? 0L : retry.delay(failures));
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package omeroautouploader;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in milliseconds with fixed buckets, cheap
+ * enough to update on every file.
+ */
+public class LatencyHistogram {
+
+	/** Upper bounds of the buckets, in milliseconds; the last bucket is unbounded. */
+	static final long[] BOUNDS = {
+		1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 1800000
+	};
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long millis) {
+		if (millis < 0) {
+			millis = 0;
+		}
+		int i = 0;
+		while (i < BOUNDS.length && millis > BOUNDS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		sum.addAndGet(millis);
+		long m;
+		while (millis > (m = max.get()) && !max.compareAndSet(m, millis)) {
+			// another thread raised the maximum first, try again
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSumMillis() {
+		return sum.get();
+	}
+
+	public long getMaxMillis() {
+		return max.get();
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given quantile, e.g. 0.99.
+	 */
+	public long getQuantileMillis(double quantile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return BOUNDS[i];
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Number of samples in each bucket, the last being the unbounded one.
+	 */
+	long[] getBuckets() {
+		long[] copy = new long[buckets.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,653 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets several uploaders, on different hosts, watch the same folders and
+ * still import each file only once.
+ *
+ * Before a file goes on to be checksummed and imported, its node claims it
+ * with a lease file next to it, .NAME.lease, holding the node's name, the
+ * lease's state and the size and modification time of the file it was
+ * taken for. The lease is written under a name of its own and then hard
+ * linked into place, which either succeeds or finds the lease already
+ * there, atomically even over NFS; where hard links are not to be had, it
+ * is created exclusively instead. Once the file is imported, or given up
+ * on, its lease is rewritten to say so and stays as a marker, so no other
+ * node takes the same version of the file again.
+ *
+ * Each node also rewrites a heartbeat file, .NODE.uploader-node, in every
+ * watched root it holds leases under. A lease whose node's heartbeat is
+ * older than the time to live belongs to a node that has died. Each lease
+ * has a generation, and it is taken over by creating a marker,
+ * .NAME.lease.N, for the next generation in the same way as a new lease:
+ * only one node can, and only that node then rewrites the lease, once it
+ * has checked it is still the one it found dead. The lease is never
+ * removed while being taken over, so no node can claim the file afresh in
+ * the meantime. Markers are removed along with the lease.
+ * Files another node is working on are remembered and looked at again on
+ * every heartbeat, so they are picked up if that node dies or lets them
+ * go. The hosts' clocks must agree to well within the time to live.
+ *
+ * A node holds at most a fixed number of claims at once, and claims the
+ * next file only when one of them is finished, so each node takes work as
+ * fast as it can import it and the rest is left to the others.
+ */
+public class LeaseCoordinator {
+
+	public enum State { CLAIMED, IMPORTED, FAILED }
+
+	/**
+	 * Told of a file whose lease has expired or been let go by another
+	 * node, so it can be queued to be claimed again.
+	 */
+	public interface Listener {
+		void available(ImportItem item);
+	}
+
+	public static final long DEFAULT_TTL = 2L * 60 * 1000;
+	public static final long DEFAULT_HEARTBEAT = 30000L;
+	public static final int DEFAULT_MAX_CLAIMS = 100;
+
+	static final String LEASE_SUFFIX = ".lease";
+	static final String NODE_SUFFIX = ".uploader-node";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Tries at claiming one file, should other nodes keep getting in first. */
+	private static final int ATTEMPTS = 3;
+
+	private final String node;
+	private final long ttl;
+	private final int maxClaims;
+	private final ScheduledExecutorService keeper;
+	private final Set<Path> roots = new HashSet<Path>();
+	/** Claims held, with the generation of each lease. */
+	private final Map<ImportItem, Long> held = new HashMap<ImportItem, Long>();
+	private final Map<Path, ImportItem> foreign = new HashMap<Path, ImportItem>();
+	private volatile Listener listener;
+	private boolean closed;
+
+	/**
+	 * A coordinator with the default limits, named after this process.
+	 */
+	public LeaseCoordinator() {
+		this(defaultNode(), DEFAULT_TTL, DEFAULT_HEARTBEAT, DEFAULT_MAX_CLAIMS);
+	}
+
+	/**
+	 * @param node this uploader's name, unique among those sharing folders
+	 * @param ttl milliseconds without a heartbeat before a node's leases
+	 *        may be taken over
+	 * @param heartbeat milliseconds between heartbeats
+	 * @param maxClaims files claimed but not yet finished at once
+	 */
+	public LeaseCoordinator(String node, long ttl, long heartbeat, int maxClaims) {
+		if (node.isEmpty() || node.indexOf('/') >= 0 || node.indexOf('\\') >= 0 || node.indexOf('\t') >= 0) {
+			throw new IllegalArgumentException("Not a usable node name: '" + node + "'");
+		}
+		if (heartbeat * 2 > ttl) {
+			throw new IllegalArgumentException("Lease time to live must be at least twice the heartbeat");
+		}
+		if (maxClaims < 1) {
+			throw new IllegalArgumentException("A node needs to hold at least one claim");
+		}
+		this.node = node;
+		this.ttl = ttl;
+		this.maxClaims = maxClaims;
+		// Two threads, so a slow look at other nodes' files never holds up
+		// the heartbeat
+		this.keeper = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "lease-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		keeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				beat();
+			}
+		}, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+		keeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				recheck();
+			}
+		}, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The JVM's own name, e.g. 1234@host, unique to this process.
+	 */
+	public static String defaultNode() {
+		return ManagementFactory.getRuntimeMXBean().getName().replaceAll("[/\\\\\\s]", "_");
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * The lease file for a data file.
+	 */
+	public static Path lease(Path file) {
+		return file.resolveSibling("." + file.getFileName() + LEASE_SUFFIX);
+	}
+
+	/**
+	 * Claim a file for this node, waiting while it holds as many claims as
+	 * it may. True if the file is now this node's to import; the claim is
+	 * then finished with {@link #complete} or let go by
+	 * {@link ImportItem#done}. False if another node has it, or has
+	 * already imported it, or once shut down.
+	 */
+	public boolean claim(ImportItem item) throws InterruptedException {
+		if (item.root == null) {
+			return true;
+		}
+		synchronized (this) {
+			while (!closed && held.size() >= maxClaims) {
+				wait();
+			}
+			if (closed) {
+				return false;
+			}
+			if (roots.add(item.root.path)) {
+				// before the first lease, so others never see it without one
+				beat(item.root.path);
+			}
+		}
+		Path lease = lease(item.file);
+		try {
+			for (int i = 0; i < ATTEMPTS; i++) {
+				if (exclusive(lease, new Lease(node, State.CLAIMED, item.size, item.modified, 0L))) {
+					hold(item, 0L);
+					return true;
+				}
+				Lease current = Lease.read(lease);
+				if (current == null) {
+					if (!Files.exists(lease)) {
+						continue;
+					}
+					if (!stale(lease)) {
+						// Being written by another node; look again later
+						break;
+					}
+					Log.warn("Replacing unreadable lease '%s'.", lease);
+					if (takeOver(lease, null, item)) {
+						return true;
+					}
+					continue;
+				}
+				if (current.size == item.size && current.modified == item.modified) {
+					if (current.state != State.CLAIMED) {
+						Log.debug("'%s' was already %s by %s.", item.file,
+							current.state == State.IMPORTED ? "imported" : "given up on", current.node);
+						forget(item.file);
+						return false;
+					}
+					if (!current.node.equals(node) && !expired(item.root.path, current)) {
+						break;
+					}
+					if (current.node.equals(node) && isHeld(item.file)) {
+						return false;
+					}
+					Log.info("Taking over '%s' from %s.", item.file, current.node);
+				}
+				// Left by a node that is gone, by an earlier run of this one,
+				// or for another version of the file
+				if (takeOver(lease, current, item)) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			Log.warn("Could not claim '%s' (%s); looking again later.", item.file, e);
+		}
+		Log.debug("'%s' is claimed by another node.", item.file);
+		synchronized (this) {
+			if (!closed) {
+				foreign.put(item.file, new ImportItem(item.file, item.size, item.modified, item.root));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A claimed file has been imported or given up on. Its lease stays as
+	 * a marker, so no other node tries it again.
+	 */
+	public void complete(ImportItem item, State state) {
+		if (item.lease != this) {
+			return;
+		}
+		item.lease = null;
+		try {
+			write(lease(item.file), new Lease(node, state, item.size, item.modified, generation(item)));
+		} catch (IOException e) {
+			Log.warn("Could not mark the lease on '%s' as %s (%s).", item.file, state, e);
+		}
+		unhold(item);
+	}
+
+	/**
+	 * Let go of a claim that was neither imported nor given up on, so
+	 * another node may take the file.
+	 */
+	void release(ImportItem item) {
+		item.lease = null;
+		try {
+			Lease current = Lease.read(lease(item.file));
+			if (current != null && current.node.equals(node) && current.state == State.CLAIMED) {
+				remove(item.file);
+			}
+		} catch (IOException e) {
+			Log.warn("Could not release the lease on '%s' (%s).", item.file, e);
+		}
+		unhold(item);
+	}
+
+	/**
+	 * Stop claiming files, let go of every claim still held, so other nodes
+	 * can take them straight away, and stop the heartbeat.
+	 */
+	public void shutdown() {
+		List<ImportItem> claims;
+		List<Path> beating;
+		synchronized (this) {
+			closed = true;
+			claims = new ArrayList<ImportItem>(held.keySet());
+			beating = new ArrayList<Path>(roots);
+			foreign.clear();
+			notifyAll();
+		}
+		keeper.shutdownNow();
+		for (ImportItem item : claims) {
+			release(item);
+		}
+		for (Path root : beating) {
+			try {
+				Files.deleteIfExists(heartbeat(root, node));
+			} catch (IOException e) {
+				Log.warn("Could not remove the heartbeat in %s (%s).", root, e);
+			}
+		}
+	}
+
+	/**
+	 * Remove a file's lease and any markers of its generations, e.g. once
+	 * the file itself has gone.
+	 */
+	public static void remove(Path file) throws IOException {
+		Path lease = lease(file);
+		Lease current = Lease.read(lease);
+		Files.deleteIfExists(lease);
+		for (long g = current == null ? 0 : current.generation; g > 0; g--) {
+			Files.deleteIfExists(marker(lease, g));
+		}
+	}
+
+	private synchronized void hold(ImportItem item, long generation) {
+		held.put(item, generation);
+		foreign.remove(item.file);
+		item.lease = this;
+	}
+
+	private synchronized long generation(ImportItem item) {
+		Long generation = held.get(item);
+		return generation == null ? 0L : generation;
+	}
+
+	private synchronized boolean isHeld(Path file) {
+		for (ImportItem item : held.keySet()) {
+			if (item.file.equals(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void unhold(ImportItem item) {
+		held.remove(item);
+		notifyAll();
+	}
+
+	private synchronized void forget(Path file) {
+		foreign.remove(file);
+	}
+
+	/**
+	 * Create a file with the given lease in it, unless there already is
+	 * one: by a hard link where the file system has them, otherwise by
+	 * exclusive creation.
+	 */
+	private boolean exclusive(Path path, Lease content) throws IOException {
+		byte[] bytes = content.toString().getBytes(UTF8);
+		Path temp = temp(path);
+		Files.write(temp, bytes);
+		try {
+			Files.createLink(path, temp);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			// No hard links here, as on SMB; exclusive creation is the next best thing
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		try {
+			Files.write(path, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Replace a lease this node holds.
+	 */
+	private void write(Path lease, Lease content) throws IOException {
+		Path temp = temp(lease);
+		Files.write(temp, content.toString().getBytes(UTF8));
+		try {
+			Files.move(temp, lease, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, lease, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Take over a dead lease, as found, for the given file. Creating the
+	 * marker for the next generation is the one step that decides between
+	 * nodes trying at once; the winner then checks the lease has not
+	 * changed since, as it would have had its node finished after all, and
+	 * replaces it with its own. True if the file is now this node's.
+	 */
+	private boolean takeOver(Path lease, Lease seen, ImportItem item) throws IOException {
+		long next;
+		if (seen != null) {
+			next = seen.generation + 1;
+		} else {
+			// Unreadable, so number it from when it was last written
+			try {
+				next = Files.getLastModifiedTime(lease).toMillis();
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+		}
+		Lease claim = new Lease(node, State.CLAIMED, item.size, item.modified, next);
+		Path marker = marker(lease, next);
+		if (!exclusive(marker, claim)) {
+			// Another node got there first
+			return false;
+		}
+		Lease now = Lease.read(lease);
+		if (seen == null ? now != null || !Files.exists(lease) : !seen.equals(now)) {
+			Files.deleteIfExists(marker);
+			return false;
+		}
+		write(lease, claim);
+		hold(item, next);
+		return true;
+	}
+
+	/**
+	 * True if the node holding a lease has stopped beating.
+	 */
+	private boolean expired(Path root, Lease lease) throws IOException {
+		return stale(heartbeat(root, lease.node));
+	}
+
+	/**
+	 * True if a file has not been written for longer than the time to live.
+	 */
+	private boolean stale(Path file) throws IOException {
+		try {
+			return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > ttl;
+		} catch (NoSuchFileException e) {
+			return true;
+		}
+	}
+
+	private void beat() {
+		List<Path> beating;
+		synchronized (this) {
+			beating = new ArrayList<Path>(roots);
+		}
+		for (Path root : beating) {
+			beat(root);
+		}
+	}
+
+	private void beat(Path root) {
+		try {
+			Files.write(heartbeat(root, node), Long.toString(System.currentTimeMillis()).getBytes(UTF8));
+		} catch (IOException e) {
+			Log.warn("Could not write the heartbeat in %s (%s); other nodes may take over its files.",
+				root, e);
+		}
+	}
+
+	/**
+	 * Look again at files other nodes hold, and queue those that have been
+	 * let go, have changed, or belong to a node that is gone.
+	 */
+	private void recheck() {
+		List<ImportItem> watched;
+		synchronized (this) {
+			watched = new ArrayList<ImportItem>(foreign.values());
+		}
+		List<ImportItem> available = new ArrayList<ImportItem>();
+		for (ImportItem item : watched) {
+			try {
+				if (!Files.exists(item.file)) {
+					forget(item.file);
+					continue;
+				}
+				Lease current = Lease.read(lease(item.file));
+				if (current == null && Files.exists(lease(item.file)) && !stale(lease(item.file))) {
+					continue;
+				}
+				if (current != null && current.size == item.size && current.modified == item.modified) {
+					if (current.state != State.CLAIMED) {
+						forget(item.file);
+						continue;
+					}
+					if (!expired(item.root.path, current)) {
+						continue;
+					}
+				}
+				forget(item.file);
+				available.add(item);
+			} catch (IOException e) {
+				Log.warn("Could not check the lease on '%s' (%s).", item.file, e);
+			}
+		}
+		Listener l = listener;
+		for (ImportItem item : available) {
+			Log.info("'%s' is free again, claiming it.", item.file);
+			if (l != null) {
+				l.available(item);
+			}
+		}
+	}
+
+	private Path temp(Path lease) {
+		return lease.resolveSibling(lease.getFileName() + "." + node + ".tmp");
+	}
+
+	private static Path marker(Path lease, long generation) {
+		return lease.resolveSibling(lease.getFileName() + "." + generation);
+	}
+
+	private static Path heartbeat(Path root, String node) {
+		return root.resolve("." + node + NODE_SUFFIX);
+	}
+
+	/**
+	 * What a lease file says.
+	 */
+	static class Lease {
+		final String node;
+		final State state;
+		final long size;
+		final long modified;
+		final long generation;
+
+		Lease(String node, State state, long size, long modified, long generation) {
+			this.node = node;
+			this.state = state;
+			this.size = size;
+			this.modified = modified;
+			this.generation = generation;
+		}
+
+		/**
+		 * The lease at the given path, or null if there is none or it cannot
+		 * be made sense of, as while it is being written.
+		 */
+		static Lease read(Path path) throws IOException {
+			String text;
+			try {
+				text = new String(Files.readAllBytes(path), UTF8).trim();
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+			String[] fields = text.split("\t");
+			if (fields.length != 5) {
+				return null;
+			}
+			try {
+				return new Lease(fields[0], State.valueOf(fields[1]),
+					Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Lease)) {
+				return false;
+			}
+			Lease other = (Lease) o;
+			return node.equals(other.node) && state == other.state
+				&& size == other.size && modified == other.modified && generation == other.generation;
+		}
+
+		@Override
+		public int hashCode() {
+			return node.hashCode() * 31 + (int) (size ^ modified);
+		}
+
+		@Override
+		public String toString() {
+			return node + "\t" + state + "\t" + size + "\t" + modified + "\t" + generation + "\n";
+		}
+	}
+
+	static void usage() {
+		System.err.println("usage: java omeroautouploader.LeaseCoordinator folder node [millis per file]");
+		System.exit(-1);
+	}
+
+	/**
+	 * Stand in for one uploader sharing a folder with others: claim every
+	 * file in it that no other node has, pretend to import each, and mark it
+	 * imported. Run several at once against the same folder, and stop one
+	 * part way, to see each file taken exactly once.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			usage();
+		}
+		Path folder = Paths.get(args[0]).toAbsolutePath().normalize();
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 100L;
+		WatchRoot root = new WatchRoot(folder, false, null);
+		LeaseCoordinator leases = new LeaseCoordinator(args[1], 10000L, 2000L, 4);
+		final List<ImportItem> free = new ArrayList<ImportItem>();
+		leases.setListener(new Listener() {
+			@Override
+			public void available(ImportItem item) {
+				synchronized (free) {
+					free.add(item);
+				}
+			}
+		});
+		List<ImportItem> items = new ArrayList<ImportItem>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (Path file : files) {
+				// Leases, including those other nodes are still writing
+				if (file.getFileName().toString().startsWith(".")) {
+					continue;
+				}
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				if (attrs.isRegularFile()) {
+					items.add(new ImportItem(file, attrs.size(), attrs.lastModifiedTime().toMillis(), root));
+				}
+			}
+		}
+		int imported = 0;
+		for (;;) {
+			for (ImportItem item : items) {
+				if (leases.claim(item)) {
+					Thread.sleep(delay);
+					leases.complete(item, State.IMPORTED);
+					System.out.printf("%s imported '%s'%n", args[1], item.file.getFileName());
+					imported++;
+				}
+			}
+			items.clear();
+			synchronized (free) {
+				items.addAll(free);
+				free.clear();
+			}
+			if (items.isEmpty()) {
+				synchronized (leases) {
+					if (leases.foreign.isEmpty()) {
+						break;
+					}
+				}
+				Thread.sleep(1000L);
+			}
+		}
+		System.out.printf("%s imported %d files.%n", args[1], imported);
+		leases.shutdown();
+		Log.flush();
+	}
+}
@@ -0,0 +1,304 @@
+package omeroautouploader;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in for the server end of a {@link ChunkedTransfer}, so the chunked
+ * transfer can be tried, and interrupted, without an OMERO server. It
+ * listens on the loopback interface and writes what it receives into a
+ * directory; {@link SocketChunkSink} is the matching client.
+ *
+ * Chunks are written into a .part file at their offset, and each received
+ * chunk's index and SHA-1 is appended to a .chunks file next to it, so a
+ * transfer cut off part way, even by restarting the server, resumes with
+ * the chunks that were not yet acknowledged. Finishing a transfer renames
+ * the .part file to the transfer id.
+ *
+ * Each request is an op byte and the transfer id, followed by:
+ * <pre>
+ * OPEN    size (long), chunk size (int)   -> count (int), count x (index (int), SHA-1 (40 bytes))
+ * WRITE   index (int), offset (long), length (long), data -> SHA-1 (40 bytes)
+ * FINISH                                  -> SHA-1 of the whole file (40 bytes)
+ * </pre>
+ */
+public class LocalChunkServer {
+
+	static final byte OPEN = 1;
+	static final byte WRITE = 2;
+	static final byte FINISH = 3;
+
+	static final Charset ASCII = Charset.forName("US-ASCII");
+	static final int HEX_LENGTH = 40;
+
+	private final Path dir;
+	private final ServerSocketChannel server;
+	private volatile boolean closed;
+
+	/**
+	 * Start serving into the given directory on the given port, or on any
+	 * free port if it is 0.
+	 */
+	public LocalChunkServer(Path dir, int port) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		this.server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "chunk-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+	}
+
+	private void accept() {
+		while (!closed) {
+			final SocketChannel client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(client);
+				}
+			}, "chunk-server-" + client.socket().getPort());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(SocketChannel client) {
+		try (SocketChannel c = client) {
+			ByteBuffer op = ByteBuffer.allocate(1);
+			for (;;) {
+				op.clear();
+				if (c.read(op) < 0) {
+					return;
+				}
+				String id = readId(c);
+				switch (op.get(0)) {
+				case OPEN:
+					open(c, id);
+					break;
+				case WRITE:
+					write(c, id);
+					break;
+				case FINISH:
+					finish(c, id);
+					break;
+				default:
+					throw new IOException("Unknown request " + op.get(0));
+				}
+			}
+		} catch (IOException e) {
+			// The client went away; whatever was acknowledged is kept
+		}
+	}
+
+	private void open(SocketChannel c, String id) throws IOException {
+		ByteBuffer in = read(c, 12);
+		long size = in.getLong();
+		int chunkSize = in.getInt();
+		Map<Integer, String> held = held(id, size, chunkSize);
+		ByteBuffer out = ByteBuffer.allocate(4 + held.size() * (4 + HEX_LENGTH));
+		out.putInt(held.size());
+		for (Map.Entry<Integer, String> e : held.entrySet()) {
+			out.putInt(e.getKey());
+			out.put(e.getValue().getBytes(ASCII));
+		}
+		out.flip();
+		writeFully(c, out);
+	}
+
+	private void write(SocketChannel c, String id) throws IOException {
+		ByteBuffer in = read(c, 20);
+		int index = in.getInt();
+		long offset = in.getLong();
+		long length = in.getLong();
+		String sha1;
+		try (FileChannel part = FileChannel.open(part(id), StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+			long received = 0;
+			while (received < length) {
+				long n = part.transferFrom(c, offset + received, length - received);
+				if (n <= 0) {
+					throw new EOFException();
+				}
+				received += n;
+			}
+			MappedByteBuffer chunk = part.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			MessageDigest md = sha1();
+			md.update(chunk);
+			sha1 = ChecksumStage.hex(md.digest());
+		}
+		acknowledge(id, index, sha1);
+		writeFully(c, ByteBuffer.wrap(sha1.getBytes(ASCII)));
+	}
+
+	private void finish(SocketChannel c, String id) throws IOException {
+		String sha1;
+		synchronized (this) {
+			Path done = dir.resolve(id);
+			Files.move(part(id), done, StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(chunks(id));
+			sha1 = ChecksumStage.sha1(done);
+		}
+		writeFully(c, ByteBuffer.wrap(sha1.getBytes(ASCII)));
+	}
+
+	/**
+	 * Chunks already received for a transfer. The record is started afresh
+	 * if it was for a different size or chunk size.
+	 */
+	private synchronized Map<Integer, String> held(String id, long size, int chunkSize) throws IOException {
+		Map<Integer, String> held = new HashMap<Integer, String>();
+		Path chunks = chunks(id);
+		String header = size + " " + chunkSize;
+		if (Files.exists(chunks)) {
+			List<String> lines = Files.readAllLines(chunks, ASCII);
+			if (!lines.isEmpty() && lines.get(0).equals(header)) {
+				for (String line : lines.subList(1, lines.size())) {
+					String[] parts = line.split(" ");
+					if (parts.length == 2 && parts[1].length() == HEX_LENGTH) {
+						held.put(Integer.valueOf(parts[0]), parts[1]);
+					}
+				}
+				return held;
+			}
+		}
+		Files.write(chunks, (header + "\n").getBytes(ASCII));
+		// Full size up front, as chunks can only be transferred in within the file
+		try (FileChannel part = FileChannel.open(part(id), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			if (size > 0) {
+				part.write(ByteBuffer.wrap(new byte[1]), size - 1);
+			}
+		}
+		return held;
+	}
+
+	private synchronized void acknowledge(String id, int index, String sha1) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(chunks(id), ASCII,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			w.write(index + " " + sha1 + "\n");
+		}
+	}
+
+	private Path part(String id) {
+		return dir.resolve(id + ".part");
+	}
+
+	private Path chunks(String id) {
+		return dir.resolve(id + ".chunks");
+	}
+
+	private static String readId(SocketChannel c) throws IOException {
+		int length = read(c, 4).getInt();
+		if (length <= 0 || length > 256) {
+			throw new IOException("Bad transfer id");
+		}
+		String id = new String(read(c, length).array(), ASCII);
+		if (!id.matches("[0-9a-f]+")) {
+			throw new IOException("Bad transfer id");
+		}
+		return id;
+	}
+
+	static ByteBuffer read(SocketChannel c, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length);
+		while (b.hasRemaining()) {
+			if (c.read(b) < 0) {
+				throw new EOFException();
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+	static void writeFully(SocketChannel c, ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			c.write(b);
+		}
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static void usage() {
+		System.err.println("usage: java omeroautouploader.LocalChunkServer serve dir [port]");
+		System.err.println("       java omeroautouploader.LocalChunkServer send port file...");
+		System.exit(-1);
+	}
+
+	/**
+	 * Run the stand-in server, or send files to one.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 2 && args[0].equals("serve")) {
+			int port = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+			LocalChunkServer server = new LocalChunkServer(Paths.get(args[1]), port);
+			System.out.printf("Receiving into %s on %s%n", args[1], server.getAddress());
+			Thread.sleep(Long.MAX_VALUE);
+		} else if (args.length >= 3 && args[0].equals("send")) {
+			InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				Integer.parseInt(args[1]));
+			ChunkedTransfer transfer = new ChunkedTransfer();
+			try (SocketChunkSink sink = new SocketChunkSink(address)) {
+				for (int i = 2; i < args.length; i++) {
+					Path file = Paths.get(args[i]);
+					long started = System.currentTimeMillis();
+					String id = ChunkedTransfer.id(file, Files.size(file),
+						Files.getLastModifiedTime(file).toMillis());
+					String sha1 = transfer.send(file, id, sink);
+					System.out.printf("Sent '%s' (SHA-1 %s) in %d ms.%n", file, sha1,
+						System.currentTimeMillis() - started);
+				}
+			} finally {
+				transfer.shutdown();
+			}
+		} else {
+			usage();
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package omeroautouploader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log for the watch loop and the pipeline, so that recording
+ * what happened never waits on the console or the disk.
+ *
+ * Callers claim a slot in a preallocated ring buffer with a single
+ * compare-and-set and leave the format and its arguments there; a
+ * background thread formats each message and writes it to the console, to
+ * a rotating log file, or both. Nothing is allocated per message beyond
+ * the caller's arguments. Should the buffer ever fill, new debug and info
+ * messages are dropped and counted rather than holding up the caller, and
+ * the count is logged once there is room again; warnings and errors wait
+ * for room instead.
+ *
+ * Messages below the configured {@link Level} are discarded before they
+ * reach the buffer. A {@link Listener}, such as the GUI, is given each
+ * message as it is written out.
+ */
+public class Log {
+
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	/**
+	 * Told of every message written out, on the log's own thread, so it
+	 * must hand the message on rather than do any real work.
+	 */
+	public interface Listener {
+		void logged(Level level, String line);
+	}
+
+	/** Slots in the ring buffer; a power of two. */
+	private static final int CAPACITY = 16384;
+
+	public static final long DEFAULT_FILE_SIZE = 10L * 1024 * 1024;
+	public static final int DEFAULT_FILES = 5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Log INSTANCE = new Log();
+
+	private final Slot[] slots = new Slot[CAPACITY];
+	/** Next sequence number to claim. */
+	private final AtomicLong head = new AtomicLong();
+	/** Next sequence number to write out. */
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	/** Set while the writer has found nothing to write and is about to park. */
+	private volatile boolean idle;
+	private final SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH);
+	private long second = -1;
+	private String secondText;
+	private final Thread writer;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private volatile Level level = Level.INFO;
+	private volatile boolean console = true;
+	private volatile Path file;
+	private long fileSize = DEFAULT_FILE_SIZE;
+	private int files = DEFAULT_FILES;
+	private Writer out;
+	private long written;
+
+	private Log() {
+		for (int i = 0; i < CAPACITY; i++) {
+			slots[i] = new Slot(i - CAPACITY);
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Log at the given level and above, to the console if asked, and to the
+	 * given file if not null, which is rotated once it reaches fileSize
+	 * bytes, keeping that many files in all.
+	 */
+	public static void configure(Level level, boolean console, Path file, long fileSize, int files)
+			throws IOException {
+		if (file != null) {
+			Path parent = file.toAbsolutePath().getParent();
+			if (parent != null) {
+				Files.createDirectories(parent);
+			}
+		}
+		flush();
+		synchronized (INSTANCE) {
+			INSTANCE.closeFile();
+			INSTANCE.fileSize = fileSize;
+			INSTANCE.files = Math.max(1, files);
+			INSTANCE.file = file;
+		}
+		INSTANCE.console = console;
+		INSTANCE.level = level;
+	}
+
+	public static void addListener(Listener listener) {
+		INSTANCE.listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		INSTANCE.listeners.remove(listener);
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(INSTANCE.level) >= 0;
+	}
+
+	public static void debug(String format, Object... args) {
+		INSTANCE.log(Level.DEBUG, null, format, args);
+	}
+
+	public static void info(String format, Object... args) {
+		INSTANCE.log(Level.INFO, null, format, args);
+	}
+
+	public static void warn(String format, Object... args) {
+		INSTANCE.log(Level.WARN, null, format, args);
+	}
+
+	public static void error(String format, Object... args) {
+		INSTANCE.log(Level.ERROR, null, format, args);
+	}
+
+	/**
+	 * Log an error together with the stack trace of what caused it.
+	 */
+	public static void error(Throwable cause, String format, Object... args) {
+		INSTANCE.log(Level.ERROR, cause, format, args);
+	}
+
+	/**
+	 * Wait until everything logged so far has been written out.
+	 */
+	public static void flush() {
+		long target = INSTANCE.head.get();
+		while (INSTANCE.tail.get() < target && INSTANCE.writer.isAlive()) {
+			LockSupport.unpark(INSTANCE.writer);
+			Thread.yield();
+		}
+		synchronized (INSTANCE) {
+			try {
+				if (INSTANCE.out != null) {
+					INSTANCE.out.flush();
+				}
+			} catch (IOException e) {
+				// Nowhere left to report it
+			}
+		}
+	}
+
+	/**
+	 * Number of messages dropped because the buffer was full.
+	 */
+	public static long getDropped() {
+		return INSTANCE.dropped.get();
+	}
+
+	private void log(Level level, Throwable cause, String format, Object[] args) {
+		if (level.compareTo(this.level) < 0) {
+			return;
+		}
+		long seq;
+		for (;;) {
+			seq = head.get();
+			if (seq - tail.get() < CAPACITY) {
+				if (head.compareAndSet(seq, seq + 1)) {
+					break;
+				}
+			} else if (level.compareTo(Level.WARN) < 0) {
+				dropped.incrementAndGet();
+				return;
+			} else {
+				LockSupport.unpark(writer);
+				Thread.yield();
+			}
+		}
+		Slot slot = slots[(int) (seq & (CAPACITY - 1))];
+		slot.level = level;
+		slot.millis = System.currentTimeMillis();
+		slot.thread = Thread.currentThread().getName();
+		slot.format = format;
+		slot.args = args;
+		slot.cause = cause;
+		// Publish only once every field is in place
+		slot.sequence = seq;
+		// Read after publishing, so that a writer going idle either sees the
+		// message or is seen here
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private void drain() {
+		StringBuilder line = new StringBuilder(256);
+		long reported = 0;
+		for (;;) {
+			long seq = tail.get();
+			Slot slot = slots[(int) (seq & (CAPACITY - 1))];
+			if (slot.sequence != seq) {
+				// Sleep until a caller publishes the next message
+				idle = true;
+				if (slot.sequence != seq) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				continue;
+			}
+			line.setLength(0);
+			format(line, slot);
+			Level level = slot.level;
+			slot.format = null;
+			slot.args = null;
+			slot.cause = null;
+			tail.lazySet(seq + 1);
+			write(level, line.toString());
+
+			long lost = dropped.get();
+			if (lost != reported) {
+				line.setLength(0);
+				timestamp(line, System.currentTimeMillis());
+				line.append(" WARN  [log-writer] ").append(lost - reported).append(" log messages dropped.")
+					.append(System.lineSeparator());
+				write(Level.WARN, line.toString());
+				reported = lost;
+			}
+		}
+	}
+
+	private void format(StringBuilder line, Slot slot) {
+		timestamp(line, slot.millis);
+		line.append(' ');
+		String name = slot.level.name();
+		line.append(name);
+		for (int i = name.length(); i < 6; i++) {
+			line.append(' ');
+		}
+		line.append('[').append(slot.thread).append("] ");
+		try {
+			line.append(slot.args == null || slot.args.length == 0
+				? slot.format : String.format(slot.format, slot.args));
+		} catch (RuntimeException e) {
+			line.append(slot.format);
+		}
+		line.append(System.lineSeparator());
+		if (slot.cause != null) {
+			StringWriter trace = new StringWriter();
+			slot.cause.printStackTrace(new PrintWriter(trace));
+			line.append(trace);
+		}
+	}
+
+	/**
+	 * Append the time to the millisecond, formatting the date and time only
+	 * once a second.
+	 */
+	private void timestamp(StringBuilder line, long millis) {
+		if (millis / 1000 != second) {
+			second = millis / 1000;
+			secondText = time.format(new Date(second * 1000));
+		}
+		int ms = (int) (millis % 1000);
+		line.append(secondText).append('.');
+		if (ms < 100) {
+			line.append('0');
+		}
+		if (ms < 10) {
+			line.append('0');
+		}
+		line.append(ms);
+	}
+
+	private synchronized void write(Level level, String line) {
+		if (console) {
+			if (level.compareTo(Level.WARN) >= 0) {
+				System.err.print(line);
+			} else {
+				System.out.print(line);
+			}
+		}
+		for (Listener listener : listeners) {
+			listener.logged(level, line);
+		}
+		if (file == null) {
+			return;
+		}
+		try {
+			if (out == null) {
+				out = Files.newBufferedWriter(file, UTF8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				written = Files.size(file);
+			}
+			out.write(line);
+			written += line.length();
+			if (tail.get() == head.get()) {
+				// caught up, so nothing is gained by holding on to it
+				out.flush();
+			}
+			if (written >= fileSize) {
+				rotate();
+			}
+		} catch (IOException e) {
+			System.err.printf("Could not write log file %s: %s%n", file, e);
+			closeFile();
+			file = null;
+		}
+	}
+
+	/**
+	 * Move the current file to .1, .1 to .2 and so on, dropping the oldest.
+	 */
+	private void rotate() throws IOException {
+		closeFile();
+		for (int i = files - 1; i >= 1; i--) {
+			Path from = i == 1 ? file : file.resolveSibling(file.getFileName() + "." + (i - 1));
+			if (Files.exists(from)) {
+				Files.move(from, file.resolveSibling(file.getFileName() + "." + i),
+					StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if (files == 1) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Nowhere left to report it
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * One message waiting in the ring buffer.
+	 */
+	private static class Slot {
+		/** Sequence number of the message it holds, once published. */
+		volatile long sequence;
+		Level level;
+		long millis;
+		String thread;
+		String format;
+		Object[] args;
+		Throwable cause;
+
+		Slot(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link PipelineMetrics} in the Prometheus text format at
+ * http://localhost:port/metrics. Only listens on the loopback interface.
+ */
+public class MetricsServer {
+
+	public static final int DEFAULT_PORT = 9464;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PREFIX = "omero_uploader_";
+
+	private static HttpServer server;
+
+	/**
+	 * Start serving on the given port unless already running.
+	 */
+	public static synchronized void ensureStarted(int port) {
+		if (server != null) {
+			return;
+		}
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		} catch (IOException e) {
+			Log.warn("Metrics not served on port %d: %s", port, e);
+			return;
+		}
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = render(PipelineMetrics.get()).getBytes(UTF8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+	}
+
+	public static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	static String render(PipelineMetrics metrics) {
+		StringBuilder sb = new StringBuilder();
+		gauge(sb, "tracked_files", "Files waiting to become stable", metrics.getTrackedFiles());
+		gauge(sb, "queue_depth", "Batches waiting for an import worker", metrics.getQueueDepth());
+		gauge(sb, "pending_files", "Stable files waiting to enter the pipeline", metrics.getPendingFiles());
+		gauge(sb, "spilled_files", "Pending files held on disk", metrics.getSpilledFiles());
+		gauge(sb, "importing_files", "Files being imported by a worker", metrics.getImportingFiles());
+		gauge(sb, "retrying_files", "Failed files waiting to be tried again", metrics.getRetryingFiles());
+		gauge(sb, "circuit_open", "1 while imports are paused because the server is failing",
+			metrics.isCircuitOpen() ? 1 : 0);
+		gauge(sb, "active_sessions", "Logged-in OMERO sessions", metrics.getActiveSessions());
+		counter(sb, "files_imported_total", "Files imported", metrics.getFilesImported());
+		counter(sb, "bytes_imported_total", "Bytes imported", metrics.getBytesImported());
+		counter(sb, "errors_total", "Files given up on after every attempt failed", metrics.getErrors());
+		gauge(sb, "files_per_second", "Files imported per second over the last minute", metrics.getFilesPerSecond());
+		gauge(sb, "bytes_per_second", "Bytes imported per second over the last minute", metrics.getBytesPerSecond());
+
+		String name = PREFIX + "stage_seconds";
+		sb.append("# HELP ").append(name).append(" Time spent in each pipeline stage\n");
+		sb.append("# TYPE ").append(name).append(" histogram\n");
+		for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+			String label = "stage=\"" + stage.name().toLowerCase(Locale.ENGLISH) + "\"";
+			LatencyHistogram h = metrics.stage(stage);
+			long[] buckets = h.getBuckets();
+			long cumulative = 0;
+			for (int i = 0; i < LatencyHistogram.BOUNDS.length; i++) {
+				cumulative += buckets[i];
+				sb.append(name).append("_bucket{").append(label).append(",le=\"")
+					.append(seconds(LatencyHistogram.BOUNDS[i])).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += buckets[buckets.length - 1];
+			sb.append(name).append("_bucket{").append(label).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+			sb.append(name).append("_sum{").append(label).append("} ").append(seconds(h.getSumMillis())).append('\n');
+			sb.append(name).append("_count{").append(label).append("} ").append(cumulative).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static void gauge(StringBuilder sb, String name, String help, double value) {
+		metric(sb, name, help, "gauge", value);
+	}
+
+	private static void counter(StringBuilder sb, String name, String help, double value) {
+		metric(sb, name, help, "counter", value);
+	}
+
+	private static void metric(StringBuilder sb, String name, String help, String type, double value) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+		sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long millis) {
+		return Double.toString(millis / 1000.0);
+	}
+}
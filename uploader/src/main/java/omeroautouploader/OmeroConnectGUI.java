@@ -0,0 +1,517 @@
+/* 
+
+	This collection of classes implements a swing gui for making an omero connection,
+	tracking a specfied directory using the Java7 watchservice and the omero import 
+	library as a way of ingesting images to a user specified omero server
+	
+	Written by Daniel Matthews, QBI Microscopy Officer
+	Last updated 150513
+ 
+*/ 
+package omeroautouploader;
+
+import java.awt.*; 
+import java.awt.event.*; 
+import javax.swing.*; 
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.swing.text.BadLocationException;
+import ome.formats.importer.ImportConfig;
+import omero.model.Dataset;
+
+public class OmeroConnectGUI extends JPanel implements ActionListener { 
+  /**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+	static private final String newline = "\n";
+
+	/** How often the dashboard is redrawn while watching, in milliseconds. */
+	static private final long FRAME = 250L;
+	/** Lines kept in the log and error areas. */
+	static private final int MAX_LINES = 500;
+
+	private ConnectionTask task;
+	private final LogFeed feed = new LogFeed();
+	JTextArea log; 
+	JTextArea errors;
+	JLabel jlabPending, jlabImporting, jlabImported, jlabRate, jlabFailures;
+	JTextField jtfHost;
+	JTextField jtfPort;
+	JTextField jtfUserName;
+	JPasswordField jtfPassword;
+	JTextField jtfTrackFolder;  
+	JTextField jtfDataSetID;
+	JTextField jtfMetricsPort;
+	//JTextArea jtaLog;
+	
+	JButton jbtnConnect; // button to compare the files 
+	JButton jbtnSelectDir;
+	JButton jbtnStopConnection;
+	JFileChooser fc;
+
+	JLabel jlabHost, jlabPort, jlabUserName, jlabPassword, jlabTrackFolder, jLabDataSetID, jlabMetricsPort; // displays prompts  
+	JLabel jlabResult; // displays results and error messages 
+
+	OmeroConnectGUI() { 
+
+		// Create a new JFrame container. 
+		JFrame jfrm = new JFrame("Connect to Omero"); 
+
+		// Specify FlowLayout for the layout manager. 
+		jfrm.setLayout(new FlowLayout()); 
+
+		// Give the frame an initial size. 
+		jfrm.setSize(420, 820); 
+		jfrm.setLocationRelativeTo(null);
+
+		// Terminate the program when the user closes the application. 
+		jfrm.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		// Create the text fields for the file names.. 
+		jtfHost = new JTextField(14); 
+		jtfHost.setText("localhost");
+		jtfPort = new JTextField(14); 
+		jtfPort.setText("4064");
+		jtfUserName = new JTextField(14); 
+		//jtfUserName.setText("root");
+		jtfPassword = new JPasswordField(14);
+		//jtfPassword.setText("omero");
+		jtfTrackFolder = new JTextField(14);
+		jtfDataSetID = new JTextField(5);
+		jtfMetricsPort = new JTextField(5);
+		jtfMetricsPort.setText(Integer.toString(MetricsServer.DEFAULT_PORT));
+		//jtfDataSetID.setText("2");
+		//jtaLog = new JTextArea(5, 15);
+		//JScrollPane scrollPane = new JScrollPane(jtaLog); 
+		//jtaLog.setEditable(false);
+		
+		// Set the action commands for the text fields. 
+		jtfHost.setActionCommand("Host"); 
+		jtfPort.setActionCommand("Port"); 
+		jtfUserName.setActionCommand("Username"); 
+		jtfPassword.setActionCommand("Password"); 
+		jtfTrackFolder.setActionCommand("TrackFolder");
+		jtfTrackFolder.setText("/Users/uqdmatt2/Documents/Programming/Java/Omero/another_test");
+		jtfDataSetID.setActionCommand("DataSetID");
+		jtfMetricsPort.setActionCommand("MetricsPort");
+		
+		// Create the buttons. 
+		JButton jbtnConnect = new JButton("Connect");
+		jbtnConnect.setActionCommand("connect"); 
+		JButton jbtnSelectDir = new JButton("Monitor Directory");
+		jbtnSelectDir.setActionCommand("select");
+		JButton jbtnStopConnection = new JButton("Stop Connection");
+		jbtnStopConnection.setActionCommand("stopconnection");
+		
+		// Create the file chooser
+		fc = new JFileChooser();
+		fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+
+		// Add action listener for the buttons. 
+		jbtnConnect.addActionListener(this); 
+		jbtnSelectDir.addActionListener(this); 
+		jbtnStopConnection.addActionListener(this); 
+		
+		// Create the labels. 
+		jlabHost = new JLabel("HOST: "); 
+		jlabPort = new JLabel("PORT: ");
+		jlabUserName = new JLabel("Username: "); 
+		jlabPassword = new JLabel("Password: ");
+		jlabTrackFolder = new JLabel("Folder to monitor: ");
+		jLabDataSetID = new JLabel("Import images to dataset ID: ");
+		jlabMetricsPort = new JLabel("Metrics port (0 for none): ");
+		jlabResult = new JLabel(""); 
+
+		// Create the dashboard, filled in while a folder is watched
+		JPanel dashboard = new JPanel(new GridLayout(0, 2, 8, 2));
+		dashboard.setBorder(BorderFactory.createTitledBorder("Progress"));
+		jlabPending = new JLabel("-");
+		jlabImporting = new JLabel("-");
+		jlabImported = new JLabel("-");
+		jlabRate = new JLabel("-");
+		jlabFailures = new JLabel("-");
+		dashboard.add(new JLabel("Waiting: "));
+		dashboard.add(jlabPending);
+		dashboard.add(new JLabel("Importing: "));
+		dashboard.add(jlabImporting);
+		dashboard.add(new JLabel("Imported: "));
+		dashboard.add(jlabImported);
+		dashboard.add(new JLabel("Throughput: "));
+		dashboard.add(jlabRate);
+		dashboard.add(new JLabel("Failures: "));
+		dashboard.add(jlabFailures);
+
+		log = new JTextArea(12, 34);
+		log.setEditable(false);
+		JScrollPane logScroll = new JScrollPane(log);
+		logScroll.setBorder(BorderFactory.createTitledBorder("Log"));
+		errors = new JTextArea(6, 34);
+		errors.setEditable(false);
+		errors.setForeground(Color.RED.darker());
+		JScrollPane errorScroll = new JScrollPane(errors);
+		errorScroll.setBorder(BorderFactory.createTitledBorder("Recent errors"));
+
+		// Add the components to the content pane. 
+		jfrm.add(jlabHost); 
+		jfrm.add(jtfHost);  
+		jfrm.add(jlabPort); 
+		jfrm.add(jtfPort);	
+		jfrm.add(jlabUserName); 
+		jfrm.add(jtfUserName);  
+		jfrm.add(jlabPassword); 
+		jfrm.add(jtfPassword);
+		jfrm.add(jlabTrackFolder); 
+		jfrm.add(jtfTrackFolder);
+		jfrm.add(jLabDataSetID);
+		jfrm.add(jtfDataSetID);
+		jfrm.add(jlabMetricsPort);
+		jfrm.add(jtfMetricsPort);
+		jfrm.add(jbtnSelectDir);    
+		jfrm.add(jbtnConnect);
+		jfrm.add(jbtnStopConnection);
+		jfrm.add(jlabResult); 
+		jfrm.add(dashboard);
+		jfrm.add(logScroll);
+		jfrm.add(errorScroll);
+		Log.addListener(feed);
+
+		// Display the frame. 
+		jfrm.setVisible(true); 
+	} 
+
+	
+	/**
+	 * What the dashboard shows, taken once a frame off the event dispatch
+	 * thread.
+	 */
+	private static class Snapshot {
+		long pending;
+		int tracked;
+		int batches;
+		int importing;
+		int retrying;
+		boolean paused;
+		long imported;
+		long failed;
+		double filesPerSecond;
+		double bytesPerSecond;
+		List<String> lines;
+		List<String> errors;
+	}
+
+	/**
+	 * Collects log messages as they are written, for the next frame to pick
+	 * up. Keeps only the most recent if the frames fall behind.
+	 */
+	private static class LogFeed implements Log.Listener {
+		private final ArrayDeque<String> lines = new ArrayDeque<String>();
+		private final ArrayDeque<String> errors = new ArrayDeque<String>();
+
+		@Override
+		public synchronized void logged(Log.Level level, String line) {
+			add(lines, line);
+			if (level.compareTo(Log.Level.WARN) >= 0) {
+				add(errors, line);
+			}
+		}
+
+		private static void add(ArrayDeque<String> queue, String line) {
+			if (queue.size() >= MAX_LINES) {
+				queue.poll();
+			}
+			queue.add(line);
+		}
+
+		synchronized void drainTo(Snapshot s) {
+			s.lines = new ArrayList<String>(lines);
+			s.errors = new ArrayList<String>(errors);
+			lines.clear();
+			errors.clear();
+		}
+	}
+
+	/**
+	 * Watches the folder on a thread of its own, and publishes a snapshot of
+	 * the pipeline every frame for {@link #process} to draw, so the event
+	 * dispatch thread only ever sees one update per frame however many
+	 * files go through.
+	 */
+	private class ConnectionTask extends SwingWorker<Void,Snapshot> { 
+		private Path trkPath;
+		private boolean recursive;
+		private ImportConfig config;
+		private int metricsPort;
+		private volatile WatchDir watcher;
+		/** Set on the event dispatch thread while the pipeline shuts down. */
+		private boolean stopping;
+		
+		public ConnectionTask(Path trkPath, boolean recursive, ImportConfig config, int metricsPort) {
+			this.trkPath = trkPath;
+			this.recursive = recursive;
+			this.config = config;
+			this.metricsPort = metricsPort;
+		}
+		@Override
+		protected Void doInBackground() throws Exception {
+			final WatchDir watcher;
+			if (metricsPort > 0) {
+				MetricsServer.ensureStarted(metricsPort);
+			}
+			try {
+				watcher = new WatchDir(trkPath, recursive, config);
+			} catch (IOException e1) {
+				MetricsServer.stop();
+				Log.error(e1, "Could not watch %s.", trkPath);
+				Log.flush();
+				publish(snapshot());
+				return null;
+			}
+			this.watcher = watcher;
+			Thread events = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watcher.processEvents();
+				}
+			}, "watch-events");
+			events.setDaemon(true);
+			events.start();
+			while (events.isAlive() && !isCancelled()) {
+				publish(snapshot());
+				events.join(FRAME);
+			}
+			Log.flush();
+			publish(snapshot());
+			return null;
+		}
+
+		private Snapshot snapshot() {
+			PipelineMetrics m = PipelineMetrics.get();
+			Snapshot s = new Snapshot();
+			s.pending = m.getPendingFiles();
+			s.tracked = m.getTrackedFiles();
+			s.batches = m.getQueueDepth();
+			s.importing = m.getImportingFiles();
+			s.retrying = m.getRetryingFiles();
+			s.paused = m.isCircuitOpen();
+			s.imported = m.getFilesImported();
+			s.failed = m.getErrors();
+			s.filesPerSecond = m.getFilesPerSecond();
+			s.bytesPerSecond = m.getBytesPerSecond();
+			feed.drainTo(s);
+			return s;
+		}
+
+		@Override
+		protected void process(List<Snapshot> frames) {
+			// Only the latest numbers matter, but every line is kept
+			Snapshot latest = frames.get(frames.size() - 1);
+			jlabPending.setText(String.format("%d files, %d settling", latest.pending, latest.tracked));
+			jlabImporting.setText(String.format("%d files, %d batches queued%s", latest.importing,
+				latest.batches, latest.paused ? ", paused" : ""));
+			jlabImported.setText(Long.toString(latest.imported));
+			jlabRate.setText(String.format(Locale.ENGLISH, "%.1f files/s, %.1f MB/s",
+				latest.filesPerSecond, latest.bytesPerSecond / (1024 * 1024)));
+			jlabFailures.setText(String.format("%d given up, %d retrying", latest.failed, latest.retrying));
+			StringBuilder lines = new StringBuilder();
+			StringBuilder errorLines = new StringBuilder();
+			for (Snapshot s : frames) {
+				for (String line : s.lines) {
+					lines.append(line);
+				}
+				for (String line : s.errors) {
+					errorLines.append(line);
+				}
+			}
+			append(log, lines);
+			append(errors, errorLines);
+		}
+
+		@Override
+		protected void done() {
+			if (!stopping) {
+				jlabResult.setText("Stopped.");
+			}
+		}
+
+		/**
+		 * Whether the folder is still watched or its pipeline still being
+		 * shut down.
+		 */
+		public boolean isBusy() {
+			return !isDone() || stopping;
+		}
+
+		/**
+		 * Stop watching and shut the pipeline down on a worker thread, as
+		 * that joins threads, closes files and flushes the log.
+		 */
+		public void stop() {
+			final WatchDir current = watcher;
+			if (current == null || stopping) {
+				return;
+			}
+			stopping = true;
+			watcher = null;
+			jlabResult.setText("Stopping...");
+			new SwingWorker<Void,Void>() {
+				@Override
+				protected Void doInBackground() {
+					try {
+						current.closeService();
+					} catch (IOException e) {
+						Log.error(e, "Could not stop watching %s.", trkPath);
+					}
+					MetricsServer.stop();
+					return null;
+				}
+
+				@Override
+				protected void done() {
+					stopping = false;
+					jlabResult.setText("Stopped.");
+				}
+			}.execute();
+		}
+		
+	}
+
+	/**
+	 * Add text to the end of an area in one go, dropping its oldest lines
+	 * beyond {@link #MAX_LINES}.
+	 */
+	private static void append(JTextArea area, CharSequence text) {
+		if (text.length() == 0) {
+			return;
+		}
+		area.append(text.toString());
+		int excess = area.getLineCount() - MAX_LINES;
+		if (excess > 0) {
+			try {
+				area.replaceRange("", 0, area.getLineEndOffset(excess - 1));
+			} catch (BadLocationException e) {
+				area.setText("");
+			}
+		}
+		area.setCaretPosition(area.getDocument().getLength());
+	}
+ 
+  // Compare the files when the Compare button is pressed. 
+	public void actionPerformed(ActionEvent ae) {    
+		boolean recursive = false;
+
+		if ("select".equals(ae.getActionCommand())) {
+			//Handle select directory button action.
+			int returnVal = fc.showOpenDialog(OmeroConnectGUI.this);
+
+			if (returnVal == JFileChooser.APPROVE_OPTION) {
+				String trkFolder = fc.getSelectedFile().getAbsolutePath();
+				jtfTrackFolder.setText(trkFolder);
+			} else {
+				log.append("Open command cancelled by user." + newline);
+			} 	 
+		}
+
+		if ("connect".equals(ae.getActionCommand())) {
+			// One watcher at a time, as its pipeline holds the state folder
+			if (task != null && task.isBusy()) {
+				jlabResult.setText("Stop watching first.");
+				return;
+			}
+			// First, confirm that both file names have 
+			// been entered. 
+			if(jtfHost.getText().equals("")) { 
+				jlabResult.setText("Host name missing."); 
+				return; 
+			} 
+			if(jtfPort.getText().equals("")) {  //put in something to check that a number was entered
+				jlabResult.setText("Port number missing."); 
+				return; 
+			} 
+			if(jtfUserName.getText().equals("")) { 
+				jlabResult.setText("Username missing."); 
+				return; 
+			}
+			if(jtfPassword.getPassword().equals("")) { 
+				jlabResult.setText("Password missing."); 
+				return; 
+			}
+			if(jtfTrackFolder.getText().equals("")) { 
+				jlabResult.setText("Folder missing."); 
+				return; 
+			}
+			if(jtfDataSetID.getText().equals("")) { 
+				jlabResult.setText("DataSet ID missing."); 
+				return; 
+			}
+			if(jtfMetricsPort.getText().trim().isEmpty()) { 
+				jlabResult.setText("Metrics port missing, 0 for none."); 
+				return; 
+			}
+			else {
+				recursive = true; //should probably have some kind of check here to make sure the folder exists			
+			}		 
+			// get host name    
+			String host = jtfHost.getText();    
+
+			// get port
+			int port = Integer.parseInt(jtfPort.getText());     
+
+			// get username
+			String uname = jtfUserName.getText(); 
+
+			// get password
+			String pwrd = new String(jtfPassword.getPassword());
+
+			// get folder to track
+			String trkFolder = jtfTrackFolder.getText();
+			Path trkPath = Paths.get(trkFolder);
+			
+			//get the ID of the dataset being imported to
+			int dataSetID = Integer.parseInt(jtfDataSetID.getText());
+
+			// where Prometheus finds the metrics, if anywhere
+			int metricsPort = Integer.parseInt(jtfMetricsPort.getText().trim());
+			
+			// Set up configuration parameters
+			ImportConfig config = new ImportConfig();
+			config.email.set("");
+			config.sendFiles.set(true);
+			config.sendReport.set(false);
+			config.contOnError.set(false);
+			config.debug.set(false);
+			config.hostname.set(host);
+			config.port.set(port);
+			config.username.set(uname);
+			config.password.set(pwrd);
+			config.targetClass.set(Dataset.class.getName());
+			config.targetId.set((long) dataSetID);
+
+			// Attempt the connection here.
+			//ConnectToOMERO connection = new ConnectToOMERO(host, port, uname, pwrd);
+			jlabResult.setText("Watching " + trkFolder);
+			(task = new ConnectionTask(trkPath, recursive, config, metricsPort)).execute();
+		}
+
+		if ("stopconnection".equals(ae.getActionCommand())) {
+			if (task != null) {
+				task.stop();
+			}
+		}
+
+  } 
+ 
+  public static void main(String args[]) { 
+    // Create the frame on the event dispatching thread. 
+    SwingUtilities.invokeLater(new Runnable() { 
+      public void run() { 
+        new OmeroConnectGUI(); 
+      } 
+    }); 
+  } 
+}
\ No newline at end of file
@@ -0,0 +1,273 @@
+package omeroautouploader;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters and latency histograms for each stage a file goes through, from
+ * being noticed to being on the server. Shared by everything in the process
+ * and published through JMX and the {@link MetricsServer}.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+	public enum Stage {
+		/** From the file's last modification to the watcher noticing it. */
+		DETECTION,
+		/** From being noticed to being judged stable. */
+		STABILITY_WAIT,
+		/** Hashing the file's content. */
+		CHECKSUM,
+		/** From a batch being queued to a worker picking it up. */
+		QUEUE,
+		/** Bio-Formats candidate scan. */
+		CANDIDATE_SCAN,
+		/** The import itself, including sending the data. */
+		UPLOAD,
+		/** Checking an imported file again and moving or deleting it. */
+		ARCHIVE
+	}
+
+	public static final String DOMAIN = "omero-auto-uploader";
+
+	private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+	private final Map<Stage, LatencyHistogram> stages = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+	private final AtomicInteger trackedFiles = new AtomicInteger();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong pendingFiles = new AtomicLong();
+	private final AtomicLong spilledFiles = new AtomicLong();
+	private final AtomicInteger activeSessions = new AtomicInteger();
+	private final AtomicInteger retryingFiles = new AtomicInteger();
+	private final AtomicInteger importingFiles = new AtomicInteger();
+	private volatile boolean circuitOpen;
+	private final AtomicLong filesImported = new AtomicLong();
+	private final AtomicLong bytesImported = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final Meter fileRate = new Meter();
+	private final Meter byteRate = new Meter();
+	private boolean registered;
+
+	private PipelineMetrics() {
+		for (Stage stage : Stage.values()) {
+			stages.put(stage, new LatencyHistogram());
+		}
+	}
+
+	public static PipelineMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Publish the metrics on the platform MBean server. Safe to call more
+	 * than once.
+	 */
+	public synchronized void register() {
+		if (registered) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, new ObjectName(DOMAIN + ":type=Pipeline"));
+			for (Stage stage : Stage.values()) {
+				server.registerMBean(new StandardMBean(new StageMetrics(stages.get(stage)), StageMetricsMBean.class),
+					new ObjectName(DOMAIN + ":type=Stage,name=" + stage.name().toLowerCase()));
+			}
+			registered = true;
+		} catch (JMException e) {
+			Log.error(e, "Metrics not published through JMX.");
+		}
+	}
+
+	public void record(Stage stage, long millis) {
+		stages.get(stage).record(millis);
+	}
+
+	public LatencyHistogram stage(Stage stage) {
+		return stages.get(stage);
+	}
+
+	public void imported(long bytes) {
+		filesImported.incrementAndGet();
+		bytesImported.addAndGet(bytes);
+		fileRate.mark(1);
+		byteRate.mark(bytes);
+	}
+
+	public void error() {
+		errors.incrementAndGet();
+	}
+
+	/**
+	 * Count files a stability tracker started or stopped tracking; every
+	 * watcher has a tracker of its own.
+	 */
+	public void trackedFiles(int files) {
+		trackedFiles.addAndGet(files);
+	}
+
+	public void queued(int batches) {
+		queueDepth.addAndGet(batches);
+	}
+
+	public void setPendingFiles(int inMemory, long onDisk) {
+		pendingFiles.set(inMemory + onDisk);
+		spilledFiles.set(onDisk);
+	}
+
+	public void importing(int files) {
+		importingFiles.addAndGet(files);
+	}
+
+	public void retrying(int files) {
+		retryingFiles.addAndGet(files);
+	}
+
+	public void setCircuitOpen(boolean open) {
+		circuitOpen = open;
+	}
+
+	public void sessionOpened() {
+		activeSessions.incrementAndGet();
+	}
+
+	public void sessionClosed() {
+		activeSessions.decrementAndGet();
+	}
+
+	@Override
+	public int getTrackedFiles() {
+		return trackedFiles.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	@Override
+	public long getPendingFiles() {
+		return pendingFiles.get();
+	}
+
+	@Override
+	public long getSpilledFiles() {
+		return spilledFiles.get();
+	}
+
+	@Override
+	public int getImportingFiles() {
+		return importingFiles.get();
+	}
+
+	@Override
+	public int getRetryingFiles() {
+		return retryingFiles.get();
+	}
+
+	@Override
+	public boolean isCircuitOpen() {
+		return circuitOpen;
+	}
+
+	@Override
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	@Override
+	public long getFilesImported() {
+		return filesImported.get();
+	}
+
+	@Override
+	public long getBytesImported() {
+		return bytesImported.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public double getFilesPerSecond() {
+		return fileRate.perSecond();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return byteRate.perSecond();
+	}
+
+	/**
+	 * Rate of events over the last minute, kept as one bucket per second.
+	 */
+	static class Meter {
+		private static final int SECONDS = 60;
+		private final AtomicLongArray counts = new AtomicLongArray(SECONDS);
+		private final AtomicLongArray stamps = new AtomicLongArray(SECONDS);
+
+		void mark(long n) {
+			long second = System.currentTimeMillis() / 1000;
+			int i = (int) (second % SECONDS);
+			long stamp = stamps.get(i);
+			if (stamp != second && stamps.compareAndSet(i, stamp, second)) {
+				counts.set(i, 0);
+			}
+			counts.addAndGet(i, n);
+		}
+
+		double perSecond() {
+			long now = System.currentTimeMillis() / 1000;
+			long total = 0;
+			for (int i = 0; i < SECONDS; i++) {
+				if (now - stamps.get(i) < SECONDS) {
+					total += counts.get(i);
+				}
+			}
+			return (double) total / SECONDS;
+		}
+	}
+
+	static class StageMetrics implements StageMetricsMBean {
+		private final LatencyHistogram histogram;
+
+		StageMetrics(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		@Override
+		public double getMeanMillis() {
+			return histogram.getMeanMillis();
+		}
+
+		@Override
+		public long getMaxMillis() {
+			return histogram.getMaxMillis();
+		}
+
+		@Override
+		public long getMedianMillis() {
+			return histogram.getQuantileMillis(0.5);
+		}
+
+		@Override
+		public long get99thPercentileMillis() {
+			return histogram.getQuantileMillis(0.99);
+		}
+	}
+}
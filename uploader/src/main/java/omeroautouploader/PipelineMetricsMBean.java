@@ -0,0 +1,20 @@
+package omeroautouploader;
+
+/**
+ * JMX view of the import pipeline as a whole.
+ */
+public interface PipelineMetricsMBean {
+	int getTrackedFiles();
+	int getQueueDepth();
+	long getPendingFiles();
+	long getSpilledFiles();
+	int getImportingFiles();
+	int getRetryingFiles();
+	boolean isCircuitOpen();
+	int getActiveSessions();
+	long getFilesImported();
+	long getBytesImported();
+	long getErrors();
+	double getFilesPerSecond();
+	double getBytesPerSecond();
+}
@@ -0,0 +1,178 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds new files by comparing snapshots of a tree, for network shares where
+ * the WatchService never reports anything.
+ *
+ * Each poll walks the tree in parallel. A directory whose modification time
+ * is unchanged since the last poll has had nothing added, removed or renamed
+ * in it, so its entries are not listed again; only its known subdirectories
+ * are visited. That only holds once the last listing was taken well after
+ * the modification time, as a coarse timestamp can hide a change made just
+ * after the listing, so a directory listed within
+ * {@link FileStabilityTracker#MIN_WINDOW} of its modification time is listed
+ * again. Files still being written are followed up by the
+ * {@link FileStabilityTracker} once they have been reported.
+ *
+ * Polls are run by {@link WatchDir} on a thread of their own, so a slow
+ * share never holds up the watch loop; only {@link #nextPoll} may be read
+ * from other threads.
+ *
+ * The interval between polls halves while changes are being found and
+ * stretches out again while the tree is quiet.
+ */
+public class PollingWatcher {
+
+	public static final long MIN_INTERVAL = 1000L;
+	public static final long MAX_INTERVAL = 60000L;
+
+	/** Shared by all pollers, limited to half the cores to bound CPU use. */
+	private static final ForkJoinPool WALKERS =
+		new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	private final WatchRoot root;
+	private final Map<Path, DirState> index = new ConcurrentHashMap<Path, DirState>();
+	private long interval = MIN_INTERVAL;
+	private volatile long nextPoll;
+
+	public PollingWatcher(WatchRoot root) {
+		this.root = root;
+	}
+
+	public WatchRoot getRoot() {
+		return root;
+	}
+
+	/**
+	 * When the next poll is due.
+	 */
+	public long nextPoll() {
+		return nextPoll;
+	}
+
+	/**
+	 * Walk the tree and return the files that are new or changed since the
+	 * last poll. The first poll reports every file in the tree.
+	 */
+	public List<Path> poll(long now) {
+		List<Path> changed = walk();
+		if (changed.isEmpty()) {
+			interval = Math.min(MAX_INTERVAL, interval + interval / 2);
+		} else {
+			interval = Math.max(MIN_INTERVAL, interval / 2);
+		}
+		nextPoll = now + interval;
+		return changed;
+	}
+
+	private List<Path> walk() {
+		Queue<Path> changed = new ConcurrentLinkedQueue<Path>();
+		WALKERS.invoke(new Walk(root.path, changed, root.recursive));
+		return new ArrayList<Path>(changed);
+	}
+
+	private static class DirState {
+		final long modified;
+		/** When the entries were listed. */
+		final long listed;
+		final Map<Path, long[]> files;
+		final List<Path> subdirs;
+
+		DirState(long modified, long listed, Map<Path, long[]> files, List<Path> subdirs) {
+			this.modified = modified;
+			this.listed = listed;
+			this.files = files;
+			this.subdirs = subdirs;
+		}
+
+		/**
+		 * True if a directory with this modification time can have changed
+		 * since it was listed.
+		 */
+		boolean stale(long modified) {
+			return modified != this.modified || listed - modified < FileStabilityTracker.MIN_WINDOW;
+		}
+	}
+
+	private class Walk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final Queue<Path> changed;
+		private final boolean descend;
+
+		Walk(Path dir, Queue<Path> changed, boolean descend) {
+			this.dir = dir;
+			this.changed = changed;
+			this.descend = descend;
+		}
+
+		@Override
+		protected void compute() {
+			DirState before = index.get(dir);
+			DirState after;
+			try {
+				long modified = Files.getLastModifiedTime(dir).toMillis();
+				after = before != null && !before.stale(modified) ? before : list(modified, before);
+			} catch (IOException e) {
+				// Gone, or the share is unavailable; try again next poll
+				index.remove(dir);
+				return;
+			}
+			index.put(dir, after);
+			if (!descend || after.subdirs.isEmpty()) {
+				return;
+			}
+			List<Walk> children = new ArrayList<Walk>(after.subdirs.size());
+			for (Path sub : after.subdirs) {
+				children.add(new Walk(sub, changed, true));
+			}
+			invokeAll(children);
+		}
+
+		private DirState list(long modified, DirState before) throws IOException {
+			long listed = System.currentTimeMillis();
+			Map<Path, long[]> files = new HashMap<Path, long[]>();
+			List<Path> subdirs = new ArrayList<Path>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					BasicFileAttributes attrs;
+					try {
+						// as the backlog scan does, so a link back up the tree is not walked forever
+						attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+					} catch (IOException e) {
+						continue;
+					}
+					if (attrs.isDirectory()) {
+						subdirs.add(entry);
+					} else if (attrs.isRegularFile()) {
+						long[] now = { attrs.size(), attrs.lastModifiedTime().toMillis() };
+						files.put(entry.getFileName(), now);
+						long[] then = before == null ? null : before.files.get(entry.getFileName());
+						if (then == null || then[0] != now[0] || then[1] != now[1]) {
+							changed.add(entry);
+						}
+					}
+				}
+			}
+			return new DirState(modified, listed, files, subdirs);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+import omero.grid.ImportProcessPrx;
+
+/**
+ * Writes chunks of one file of an import into the managed repository, each
+ * stream through its own RawFileStore from the import process.
+ *
+ * Ice needs the data as a byte array, so each block is copied out of the
+ * transfer's direct buffer before it is written. The repository only
+ * reports the whole file's checksum, which the import process checks
+ * against the one the transfer computed once the upload is finished, so
+ * writes are not acknowledged with a checksum. Every import uploads to a
+ * fresh file: a chunk whose write fails is sent again on a new
+ * RawFileStore, but an import that is abandoned starts again from the
+ * first chunk.
+ */
+public class RawFileStoreSink implements ChunkSink {
+
+	private final ImportProcessPrx proc;
+	private final int index;
+	private final BlockingQueue<RawFileStorePrx> idle = new LinkedBlockingQueue<RawFileStorePrx>();
+
+	/**
+	 * @param proc the import process the file belongs to
+	 * @param index the file's position in the fileset
+	 */
+	public RawFileStoreSink(ImportProcessPrx proc, int index) {
+		this.proc = proc;
+		this.index = index;
+	}
+
+	@Override
+	public Map<Integer, String> open(String id, long size, int chunkSize) {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public Writer write(String id, int chunk, final long offset, long length) throws IOException {
+		final RawFileStorePrx store = borrow();
+		return new Writer() {
+			private long position = offset;
+			private byte[] buf;
+
+			@Override
+			public void write(ByteBuffer block) throws IOException {
+				int n = block.remaining();
+				if (buf == null || buf.length < n) {
+					buf = new byte[n];
+				}
+				block.get(buf, 0, n);
+				try {
+					store.write(buf, position, n);
+				} catch (ServerError e) {
+					throw new IOException(e);
+				} catch (RuntimeException e) {
+					// Ice reports a dropped connection with an unchecked exception
+					throw new IOException(e);
+				}
+				position += n;
+			}
+
+			@Override
+			public String complete() {
+				idle.add(store);
+				return null;
+			}
+
+			@Override
+			public void abort() {
+				closeQuietly(store);
+			}
+		};
+	}
+
+	@Override
+	public String finish(String id) {
+		RawFileStorePrx store;
+		while ((store = idle.poll()) != null) {
+			closeQuietly(store);
+		}
+		return null;
+	}
+	private RawFileStorePrx borrow() throws IOException {
+		RawFileStorePrx store = idle.poll();
+		if (store != null) {
+			return store;
+		}
+		try {
+			return proc.getUploader(index);
+		} catch (ServerError e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void closeQuietly(RawFileStorePrx store) {
+		try {
+			store.close();
+		} catch (Exception e) {
+			// Already gone
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package omeroautouploader;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.OMEROWrapper;
+
+/**
+ * On-disk cache of Bio-Formats reader state, using the Memoizer support in
+ * {@link OMEROWrapper}, so that parsing the same large file again (for the
+ * import after the candidate scan, or after a retry) is cheap.
+ *
+ * Memo files are laid out the way Memoizer lays them out, which lets the
+ * cache count a hit when a memo newer than the file already exists. Memoizer
+ * itself throws away memos whose source has changed since.
+ */
+public class ReaderCache {
+
+	/** Where memo files are kept unless told otherwise. */
+	public static final Path DEFAULT_DIRECTORY =
+		Paths.get(System.getProperty("user.home"), ".omero-auto-uploader", "bfmemo");
+
+	/** Only parses slower than this many milliseconds are worth a memo. */
+	public static final long DEFAULT_MINIMUM_ELAPSED = 100L;
+
+	private final File directory;
+	private final long minimumElapsed;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ReaderCache() {
+		this(DEFAULT_DIRECTORY, DEFAULT_MINIMUM_ELAPSED);
+	}
+
+	public ReaderCache(Path directory, long minimumElapsed) {
+		this.directory = directory.toFile();
+		this.minimumElapsed = minimumElapsed;
+		this.directory.mkdirs();
+	}
+
+	/**
+	 * A reader which saves and reuses memos in this cache. Readers are not
+	 * thread safe, so each import worker keeps its own.
+	 */
+	public OMEROWrapper newReader(ImportConfig config) {
+		return new OMEROWrapper(config, minimumElapsed, directory);
+	}
+
+	/**
+	 * Count a hit or a miss for each file about to be parsed.
+	 */
+	public void lookup(String[] paths) {
+		for (String path : paths) {
+			File file = new File(path).getAbsoluteFile();
+			File memo = new File(new File(directory, file.getParent()), "." + file.getName() + ".bfmemo");
+			if (memo.exists() && memo.lastModified() >= file.lastModified()) {
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Fraction of parses served from a memo, or 0 before any lookups.
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+}
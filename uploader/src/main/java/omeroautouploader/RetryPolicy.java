@@ -0,0 +1,67 @@
+package omeroautouploader;
+
+import java.util.Random;
+
+/**
+ * How often, and after how long, a file that failed to import is tried
+ * again before it is given up on.
+ *
+ * The delay doubles with each attempt, up to a maximum, and is then
+ * jittered to between half and all of that, so files that failed together
+ * do not all come back at the same moment.
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_ATTEMPTS = 5;
+	public static final long DEFAULT_INITIAL_DELAY = 30000L;
+	public static final long DEFAULT_MAX_DELAY = 30L * 60 * 1000;
+
+	private final int attempts;
+	private final long initialDelay;
+	private final long maxDelay;
+	private final Random random = new Random();
+
+	public RetryPolicy() {
+		this(DEFAULT_ATTEMPTS, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param attempts imports tried in all before a file is given up on
+	 * @param initialDelay wait before the first retry, in milliseconds
+	 * @param maxDelay longest wait before a retry, in milliseconds
+	 */
+	public RetryPolicy(int attempts, long initialDelay, long maxDelay) {
+		if (attempts < 1) {
+			throw new IllegalArgumentException("A file needs at least one attempt");
+		}
+		this.attempts = attempts;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * True if a file that has failed this many times should be tried again.
+	 */
+	public boolean retry(int failures) {
+		return failures < attempts;
+	}
+
+	/**
+	 * Milliseconds to wait before trying a file that has failed this many
+	 * times.
+	 */
+	public long delay(int failures) {
+		long delay = initialDelay;
+		for (int i = 1; i < failures && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelay);
+		synchronized (random) {
+			return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+		}
+	}
+}
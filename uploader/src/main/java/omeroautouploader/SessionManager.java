@@ -0,0 +1,157 @@
+package omeroautouploader;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one logged-in session open for as long as it is needed, so imports
+ * do not pay for a login each time.
+ *
+ * The session is pinged in the background to keep it alive. When a ping
+ * fails, or a caller reports the session as broken, the session is
+ * dropped and the next {@link #get} logs in again, backing off
+ * exponentially while the server cannot be reached.
+ *
+ * The actual login, ping and logout are supplied by a {@link Connector},
+ * so the manager can be driven by a stand-in for the server.
+ */
+public class SessionManager<S> {
+
+	public interface Connector<S> {
+		S connect() throws Exception;
+		void ping(S session) throws Exception;
+		void close(S session);
+	}
+
+	public static final long DEFAULT_KEEP_ALIVE = 60000L;
+	public static final long INITIAL_BACKOFF = 1000L;
+	public static final long MAX_BACKOFF = 60000L;
+
+	private static final ScheduledExecutorService KEEP_ALIVE =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "session-keep-alive");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final Connector<S> connector;
+	private final ScheduledFuture<?> keepAlive;
+	private S session;
+	private boolean closed;
+
+	public SessionManager(Connector<S> connector) {
+		this(connector, DEFAULT_KEEP_ALIVE);
+	}
+
+	public SessionManager(Connector<S> connector, long keepAliveMillis) {
+		this.connector = connector;
+		this.keepAlive = KEEP_ALIVE.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				ping();
+			}
+		}, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The current session, logging in first if there is none. Blocks,
+	 * retrying with exponential backoff, until a login succeeds.
+	 */
+	public synchronized S get() throws InterruptedException {
+		long backoff = INITIAL_BACKOFF;
+		while (session == null) {
+			if (closed) {
+				throw new IllegalStateException("Session manager has been shut down");
+			}
+			try {
+				session = connector.connect();
+				PipelineMetrics.get().sessionOpened();
+			} catch (Exception e) {
+				Log.warn("Login failed (%s), retrying in %d ms.", e, backoff);
+				wait(backoff);
+				backoff = Math.min(MAX_BACKOFF, backoff * 2);
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * As {@link #get}, but a failed login is thrown to the caller rather
+	 * than retried, leaving any backing off to it.
+	 */
+	public synchronized S tryGet() throws Exception {
+		if (closed) {
+			throw new IllegalStateException("Session manager has been shut down");
+		}
+		if (session == null) {
+			session = connector.connect();
+			PipelineMetrics.get().sessionOpened();
+		}
+		return session;
+	}
+
+	/**
+	 * Log in if need be and ping the server, throwing if it cannot be
+	 * reached. A session that fails the ping is dropped.
+	 */
+	public void check() throws Exception {
+		S current = tryGet();
+		try {
+			connector.ping(current);
+		} catch (Exception e) {
+			invalidate(current);
+			throw e;
+		}
+	}
+
+	/**
+	 * Report that a session returned by {@link #get} no longer works.
+	 */
+	public synchronized void invalidate(S broken) {
+		if (broken != null && broken == session) {
+			session = null;
+			PipelineMetrics.get().sessionClosed();
+			connector.close(broken);
+		}
+	}
+
+	public synchronized boolean isConnected() {
+		return session != null;
+	}
+
+	/**
+	 * Log out and stop the keep-alive.
+	 */
+	public synchronized void shutdown() {
+		closed = true;
+		keepAlive.cancel(false);
+		if (session != null) {
+			connector.close(session);
+			session = null;
+			PipelineMetrics.get().sessionClosed();
+		}
+		notifyAll();
+	}
+
+	private void ping() {
+		S current;
+		synchronized (this) {
+			current = session;
+		}
+		if (current == null) {
+			return;
+		}
+		try {
+			connector.ping(current);
+		} catch (Exception e) {
+			Log.warn("Session lost (%s), will log in again.", e);
+			invalidate(current);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package omeroautouploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sends chunks to a {@link LocalChunkServer}. Each stream borrows its own
+ * connection, and blocks go from the transfer's direct buffers straight to
+ * the socket. A connection whose request fails is dropped, and the retry
+ * opens a new one.
+ */
+public class SocketChunkSink implements ChunkSink, Closeable {
+
+	private final InetSocketAddress address;
+	private final BlockingQueue<SocketChannel> idle = new LinkedBlockingQueue<SocketChannel>();
+
+	public SocketChunkSink(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	@Override
+	public Map<Integer, String> open(String id, long size, int chunkSize) throws IOException {
+		SocketChannel c = borrow();
+		try {
+			ByteBuffer request = header(LocalChunkServer.OPEN, id, 12);
+			request.putLong(size).putInt(chunkSize).flip();
+			LocalChunkServer.writeFully(c, request);
+			int count = LocalChunkServer.read(c, 4).getInt();
+			Map<Integer, String> held = new HashMap<Integer, String>();
+			if (count > 0) {
+				ByteBuffer entries = LocalChunkServer.read(c, count * (4 + LocalChunkServer.HEX_LENGTH));
+				byte[] hex = new byte[LocalChunkServer.HEX_LENGTH];
+				for (int i = 0; i < count; i++) {
+					int index = entries.getInt();
+					entries.get(hex);
+					held.put(index, new String(hex, LocalChunkServer.ASCII));
+				}
+			}
+			release(c);
+			return held;
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public Writer write(String id, int index, long offset, long length) throws IOException {
+		final SocketChannel c = borrow();
+		try {
+			ByteBuffer request = header(LocalChunkServer.WRITE, id, 20);
+			request.putInt(index).putLong(offset).putLong(length).flip();
+			LocalChunkServer.writeFully(c, request);
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+		return new Writer() {
+			@Override
+			public void write(ByteBuffer block) throws IOException {
+				LocalChunkServer.writeFully(c, block);
+			}
+
+			@Override
+			public String complete() throws IOException {
+				try {
+					String sha1 = new String(LocalChunkServer.read(c, LocalChunkServer.HEX_LENGTH).array(),
+						LocalChunkServer.ASCII);
+					release(c);
+					return sha1;
+				} catch (IOException e) {
+					c.close();
+					throw e;
+				}
+			}
+
+			@Override
+			public void abort() {
+				try {
+					c.close();
+				} catch (IOException e) {
+					// Already broken
+				}
+			}
+		};
+	}
+
+	@Override
+	public String finish(String id) throws IOException {
+		SocketChannel c = borrow();
+		try {
+			ByteBuffer request = header(LocalChunkServer.FINISH, id, 0);
+			request.flip();
+			LocalChunkServer.writeFully(c, request);
+			String sha1 = new String(LocalChunkServer.read(c, LocalChunkServer.HEX_LENGTH).array(),
+				LocalChunkServer.ASCII);
+			release(c);
+			return sha1;
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close every idle connection.
+	 */
+	@Override
+	public void close() throws IOException {
+		SocketChannel c;
+		while ((c = idle.poll()) != null) {
+			c.close();
+		}
+	}
+
+	private SocketChannel borrow() throws IOException {
+		SocketChannel c = idle.poll();
+		return c != null ? c : SocketChannel.open(address);
+	}
+
+	private void release(SocketChannel c) {
+		idle.add(c);
+	}
+
+	private static ByteBuffer header(byte op, String id, int extra) {
+		byte[] name = id.getBytes(LocalChunkServer.ASCII);
+		ByteBuffer b = ByteBuffer.allocate(1 + 4 + name.length + extra);
+		b.put(op).putInt(name.length).put(name);
+		return b;
+	}
+}
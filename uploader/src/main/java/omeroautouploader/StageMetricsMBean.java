@@ -0,0 +1,12 @@
+package omeroautouploader;
+
+/**
+ * JMX view of the time spent in one stage of the import pipeline.
+ */
+public interface StageMetricsMBean {
+	long getCount();
+	double getMeanMillis();
+	long getMaxMillis();
+	long getMedianMillis();
+	long get99thPercentileMillis();
+}
@@ -0,0 +1,141 @@
+package omeroautouploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The folder an uploader keeps its ledger, content index, dead letters and
+ * spill log in, locked for as long as the uploader runs.
+ *
+ * Those files are written by one uploader only: two processes appending to
+ * one journal, or one clearing the other's spill log on start, lose each
+ * other's records. Each uploader therefore gets a folder of its own below
+ * {@link #BASE}, named after its node, or after the host if it has none, so
+ * that hosts sharing a home directory over NFS stay apart too. A second
+ * uploader given the same folder is refused at start.
+ */
+public class StateDirectory implements Closeable {
+
+	/** Where each uploader's folder is made unless told otherwise. */
+	public static final Path BASE = Paths.get(System.getProperty("user.home"), ".omero-auto-uploader");
+
+	/** Files kept directly in {@link #BASE} before each uploader had its own folder. */
+	private static final String[] LEGACY = {
+		ImportLedger.FILE_NAME, ContentHashIndex.FILE_NAME, DeadLetterStore.FILE_NAME
+	};
+
+	private final Path path;
+	private final FileChannel channel;
+	private final FileLock lock;
+
+	private StateDirectory(Path path, FileChannel channel, FileLock lock) {
+		this.path = path;
+		this.channel = channel;
+		this.lock = lock;
+	}
+
+	/**
+	 * The default folder for the named node, or for this host if null.
+	 */
+	public static Path defaultPath(String node) {
+		if (node == null || node.trim().isEmpty()) {
+			try {
+				node = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				node = "localhost";
+			}
+		}
+		return BASE.resolve(node.trim().replaceAll("[/\\\\:\\s]", "_"));
+	}
+
+	/**
+	 * Create the folder if need be and lock it, failing if another uploader,
+	 * in this process or another, already has it. Files left in
+	 * {@link #BASE} by earlier versions are moved into a new default folder.
+	 */
+	public static StateDirectory lock(Path path) throws IOException {
+		path = path.toAbsolutePath().normalize();
+		boolean created = !Files.isDirectory(path);
+		Files.createDirectories(path);
+		FileChannel channel = FileChannel.open(path.resolve("lock"),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		if (lock == null) {
+			channel.close();
+			throw new IOException("State folder " + path + " is in use by another uploader;"
+				+ " give each uploader its own state.dir or lease.node");
+		}
+		StateDirectory state = new StateDirectory(path, channel, lock);
+		if (created && BASE.toAbsolutePath().normalize().equals(path.getParent())) {
+			state.adopt();
+		}
+		return state;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * A file or folder in this one.
+	 */
+	public Path resolve(String name) {
+		return path.resolve(name);
+	}
+
+	/**
+	 * Release the folder for the next uploader.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!channel.isOpen()) {
+			return;
+		}
+		try {
+			lock.release();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Take over the files an earlier version kept in {@link #BASE}, so that
+	 * what it imported is not imported again.
+	 */
+	private void adopt() throws IOException {
+		for (String name : LEGACY) {
+			Path legacy = path.getParent().resolve(name);
+			if (Files.exists(legacy)) {
+				Log.info("Moving %s into %s.", legacy, path);
+				try {
+					Files.move(legacy, path.resolve(name));
+				} catch (NoSuchFileException e) {
+					// Taken by another uploader starting at the same time
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return path.toString();
+	}
+}
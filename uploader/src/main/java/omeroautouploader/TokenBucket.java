@@ -0,0 +1,77 @@
+package omeroautouploader;
+
+/**
+ * Limits the average rate at which bytes are sent.
+ *
+ * Tokens, one per byte, are added at the current rate up to a burst of one
+ * second's worth. Sending is allowed whenever the bucket is not in debt, and
+ * is charged afterwards in full, so a single large send may take the bucket
+ * well below zero; nothing else is let through until it has paid that back.
+ * This keeps the long-run rate at the limit without needing to split sends.
+ *
+ * A rate of zero means no limit. Not thread safe; the
+ * {@link UploadScheduler} guards its buckets with its own lock.
+ */
+public class TokenBucket {
+
+	private long rate;
+	private double tokens;
+	private long updated;
+
+	/**
+	 * @param rate bytes per second, or 0 for no limit
+	 */
+	public TokenBucket(long rate) {
+		this.rate = rate;
+		this.tokens = rate;
+		this.updated = System.currentTimeMillis();
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Change the rate, e.g. as a bandwidth profile moves into a new period.
+	 * Tokens already in the bucket are kept, within the new burst.
+	 */
+	public void setRate(long rate, long now) {
+		if (rate == this.rate) {
+			return;
+		}
+		refill(now);
+		this.rate = rate;
+		if (rate > 0) {
+			tokens = Math.min(tokens, rate);
+		}
+	}
+
+	/**
+	 * Milliseconds until the bucket is out of debt; 0 if it is already.
+	 */
+	public long readyIn(long now) {
+		if (rate <= 0) {
+			return 0L;
+		}
+		refill(now);
+		return tokens >= 0 ? 0L : (long) Math.ceil(-tokens * 1000.0 / rate);
+	}
+
+	/**
+	 * Take the given number of bytes from the bucket.
+	 */
+	public void charge(long bytes, long now) {
+		if (rate <= 0) {
+			return;
+		}
+		refill(now);
+		tokens -= bytes;
+	}
+
+	private void refill(long now) {
+		if (now > updated) {
+			tokens = Math.min(rate, tokens + (now - updated) * (double) rate / 1000.0);
+			updated = now;
+		}
+	}
+}
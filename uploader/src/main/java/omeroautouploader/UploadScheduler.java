@@ -0,0 +1,192 @@
+package omeroautouploader;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decides which queued batch an import worker sends next, in place of a
+ * plain first come, first served queue.
+ *
+ * Batches are queued per watch root, and so per instrument and target
+ * dataset. When a worker asks for work the scheduler picks, in order:
+ * <ol>
+ * <li>the root with the highest priority,</li>
+ * <li>a root with a small batch waiting, if small batches go first,</li>
+ * <li>the root that has been sent the fewest bytes while it had work
+ * queued, so that busy roots share the link evenly.</li>
+ * </ol>
+ * A root with its own bandwidth limit is passed over until its
+ * {@link TokenBucket} is out of debt, and nothing is handed out while the
+ * total limit, which follows a {@link BandwidthProfile}, is in debt.
+ *
+ * Limits are applied per batch, as the import library gives no way to pace
+ * the bytes within one; the batcher's size cap bounds how far a single
+ * batch can overrun.
+ */
+public class UploadScheduler {
+
+	/** Batches up to this size count as small and go first. */
+	public static final long DEFAULT_SMALL_BATCH = 16L * 1024 * 1024;
+
+	/** Longest wait before looking at the bandwidth profile again. */
+	private static final long MAX_WAIT = 60000L;
+
+	private final BandwidthProfile profile;
+	private final TokenBucket total = new TokenBucket(0L);
+	private final long smallBatch;
+	private final Map<WatchRoot, Flow> flows = new HashMap<WatchRoot, Flow>();
+	private long virtualTime;
+	private int size;
+	private boolean closed;
+
+	/**
+	 * A scheduler with no bandwidth limits that sends small batches first.
+	 */
+	public UploadScheduler() {
+		this(BandwidthProfile.constant(0L), DEFAULT_SMALL_BATCH);
+	}
+
+	/**
+	 * @param profile total bandwidth by time of day
+	 * @param smallBatch batches up to this many bytes go before larger ones
+	 *        from roots of the same priority; 0 to treat all alike
+	 */
+	public UploadScheduler(BandwidthProfile profile, long smallBatch) {
+		this.profile = profile;
+		this.smallBatch = smallBatch;
+	}
+
+	/**
+	 * Queue a batch. Never blocks.
+	 */
+	public synchronized void add(ImportBatch batch) {
+		Flow flow = flows.get(batch.root);
+		if (flow == null) {
+			flow = new Flow(batch.root);
+			flows.put(batch.root, flow);
+		}
+		if (flow.queue.isEmpty()) {
+			// no credit for the time it had nothing to send
+			flow.served = Math.max(flow.served, virtualTime);
+		}
+		flow.add(batch);
+		size++;
+		notifyAll();
+	}
+
+	/**
+	 * The next batch to send, waiting until one is queued and the bandwidth
+	 * limits allow it. Returns null once shut down and empty.
+	 */
+	public synchronized ImportBatch take() throws InterruptedException {
+		for (;;) {
+			if (size == 0) {
+				if (closed) {
+					return null;
+				}
+				wait();
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			total.setRate(profile.rateAt(now), now);
+			long wait = total.readyIn(now);
+			Flow best = null;
+			if (wait == 0) {
+				wait = MAX_WAIT;
+				for (Flow flow : flows.values()) {
+					if (flow.queue.isEmpty()) {
+						continue;
+					}
+					long ready = flow.limit.readyIn(now);
+					if (ready > 0) {
+						wait = Math.min(wait, ready);
+					} else if (best == null || flow.goesBefore(best)) {
+						best = flow;
+					}
+				}
+			}
+			if (best != null) {
+				ImportBatch batch = best.poll();
+				size--;
+				virtualTime = best.served;
+				best.served += batch.bytes;
+				best.limit.charge(batch.bytes, now);
+				total.charge(batch.bytes, now);
+				return batch;
+			}
+			wait(Math.min(wait, MAX_WAIT));
+		}
+	}
+
+	/**
+	 * Number of batches waiting.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Let {@link #take} return null once everything queued has been sent.
+	 */
+	public synchronized void shutdown() {
+		closed = true;
+		notifyAll();
+	}
+
+	private boolean isSmall(ImportBatch batch) {
+		return smallBatch > 0 && batch.bytes <= smallBatch;
+	}
+
+	/**
+	 * Everything queued for one watch root.
+	 */
+	private class Flow {
+		final int priority;
+		final TokenBucket limit;
+		final ArrayDeque<ImportBatch> queue = new ArrayDeque<ImportBatch>();
+		int small;
+		long served;
+
+		Flow(WatchRoot root) {
+			this.priority = root == null ? 0 : root.priority;
+			this.limit = new TokenBucket(root == null ? 0L : root.bandwidth);
+		}
+
+		void add(ImportBatch batch) {
+			queue.add(batch);
+			if (isSmall(batch)) {
+				small++;
+			}
+		}
+
+		/**
+		 * The oldest small batch if there is one, else the oldest batch.
+		 */
+		ImportBatch poll() {
+			if (small > 0) {
+				Iterator<ImportBatch> it = queue.iterator();
+				while (it.hasNext()) {
+					ImportBatch batch = it.next();
+					if (isSmall(batch)) {
+						it.remove();
+						small--;
+						return batch;
+					}
+				}
+			}
+			return queue.poll();
+		}
+
+		boolean goesBefore(Flow other) {
+			if (priority != other.priority) {
+				return priority > other.priority;
+			}
+			if ((small > 0) != (other.small > 0)) {
+				return small > 0;
+			}
+			return served < other.served;
+		}
+	}
+}
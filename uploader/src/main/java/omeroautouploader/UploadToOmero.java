@@ -0,0 +1,288 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.formats.in.DefaultMetadataOptions;
+import loci.formats.in.MetadataLevel;
+import loci.formats.meta.MetadataStore;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportCandidates;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
+import ome.formats.importer.ImportEvent;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.IObservable;
+import ome.formats.importer.IObserver;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.cli.ErrorHandler;
+import ome.formats.importer.cli.LoggingImportMonitor;
+import omero.model.Pixels;
+
+public class UploadToOmero implements Uploader {
+    /** Configuration used by all components */
+    public final ImportConfig config;
+
+    /** ErrorHandler which is also responsible for uploading files */
+    public final ErrorHandler handler;
+
+    /** Logged-in Bio-Formats {@link MetadataStore} implementations for OMERO. */
+    private final SessionManager<OMEROMetadataStoreClient> sessions;
+
+    /** Cache of parsed reader state shared with other workers. */
+    private final ReaderCache readerCache;
+
+    /**
+     * OMERO reader wrapper which encompasses the related Bio-Formats
+     * functionality required for an OMERO import. Kept for the life of this
+     * object so that each import does not have to set one up.
+     */
+    private final OMEROWrapper reader;
+
+    /** Sends large files in parallel chunks; shared by every library. */
+    private final ChunkedTransfer transfer = new ChunkedTransfer();
+
+    /** Import library for the current session, and the session it uses. */
+    private ImportLibrary library;
+    private OMEROMetadataStoreClient libraryStore;
+
+    private final PipelineMetrics metrics = PipelineMetrics.get();
+
+    /** Ids of the Pixels created by the last call to {@link #start}, by file. */
+    private final Map<String, List<Long>> pixelsIds = new HashMap<String, List<Long>>();
+
+    /** SHA-1 of each file sent by the last call to {@link #start}, by file. */
+    private final Map<String, String> uploadedHashes = new HashMap<String, String>();
+
+    /** Every file of each fileset being imported, by the file it was found from. */
+    private final Map<String, String[]> usedFiles = new HashMap<String, String[]>();
+
+    
+    public UploadToOmero(final ImportConfig config) throws Exception {
+        this(config, new ReaderCache());
+    }
+
+    public UploadToOmero(final ImportConfig config, ReaderCache readerCache) throws Exception {
+        this.config = config;
+        this.readerCache = readerCache;
+        config.loadAll();
+        config.isUpgradeNeeded();
+        // logged in on first use, so a server that is down only holds up
+        // the imports routed to it
+        this.sessions = new SessionManager<OMEROMetadataStoreClient>(new StoreConnector(config));
+        this.handler = new ErrorHandler(config);
+        this.reader = readerCache.newReader(config);
+
+//        Runtime.getRuntime().addShutdownHook(new Thread() {
+//            public void run() {
+//                cleanup();
+//            }
+//        });
+    }
+
+    public int start(String[] paths) throws Exception {
+    	return start(paths, config);
+    }
+
+    /**
+     * Import the given files to the targetClass and targetId of the given
+     * configuration, which may differ from the one used to log in.
+     */
+    @Override
+    public int start(String[] paths, ImportConfig target) throws Exception {
+    	boolean success = true;
+    	pixelsIds.clear();
+    	uploadedHashes.clear();
+    	usedFiles.clear();
+    	// a failed login is left to the worker pool's circuit breaker
+    	OMEROMetadataStoreClient store = sessions.tryGet();
+		try {
+ 
+			ImportLibrary library = library(store);
+ 
+			// Calculate the candidates that are required for the import, which
+			// is done with a metadata level of MINIMUM to avoid parsing and
+			// populating all metadata during this process.
+			readerCache.lookup(paths);
+			reader.setMetadataOptions(
+					new DefaultMetadataOptions(MetadataLevel.MINIMUM));
+			long started = System.currentTimeMillis();
+			ImportCandidates candidates =
+				new ImportCandidates(reader, paths, handler);
+			metrics.record(PipelineMetrics.Stage.CANDIDATE_SCAN, System.currentTimeMillis() - started);
+			
+	        if (candidates.size() < 1) {
+	            // nothing reached the server, so none of the files count as imported
+	            success = false;
+	            if (handler.errorCount() > 0) {
+	                Log.warn("No imports due to errors!");
+	                //report();
+	            } else {
+	                Log.warn("No imports found");
+	            }
+	        }
+
+	        else { 
+	        	// Up the metadata level to ALL so that the actual import itself
+	        	// will be complete.
+	        	reader.setMetadataOptions(
+	        			new DefaultMetadataOptions(MetadataLevel.ALL));
+	        	for (ImportContainer container : candidates.getContainers()) {
+	        		usedFiles.put(key(container.getFile().getPath()), container.getUsedFiles());
+	        	}
+	        	started = System.currentTimeMillis();
+	        	success = library.importCandidates(target, candidates);
+	        	metrics.record(PipelineMetrics.Stage.UPLOAD, System.currentTimeMillis() - started);
+	        	//report();
+	        }
+		} catch (RuntimeException e) {
+			// Most likely the session has gone, so start the next import afresh
+			sessions.invalidate(store);
+			throw e;
+		}
+        return success? 0 : 2;
+    }
+    
+    /**
+     * The import library, which is responsible for actually performing an
+     * OMERO import life cycle, for the given session. It is only created
+     * again when the session has changed.
+     */
+    private ImportLibrary library(OMEROMetadataStoreClient store) {
+    	if (library == null || libraryStore != store) {
+    		library = new ChunkedImportLibrary(store, reader, transfer, uploadedHashes);
+
+    		// Add a logging observer to the import library which will print
+    		// to the log file (defaulting to STDOUT/STDERR) the status of the
+    		// import process.
+    		library.addObserver(new LoggingImportMonitor());
+    		library.addObserver(new PixelsCollector());
+    		libraryStore = store;
+    	}
+    	return library;
+    }
+
+    @Override
+    public String getUploadedHash(String path) {
+    	return uploadedHashes.get(key(path));
+    }
+
+    @Override
+    public void probe() throws Exception {
+    	sessions.check();
+    }
+
+    /**
+     * Ids of the Pixels objects created on the server for one of the files
+     * passed to the last call to {@link #start}.
+     */
+    @Override
+    public long[] getImportedPixelsIds(String path) {
+    	List<Long> found = pixelsIds.get(key(path));
+    	if (found == null) {
+    		return new long[0];
+    	}
+    	long[] ids = new long[found.size()];
+    	for (int i = 0; i < ids.length; i++) {
+    		ids[i] = found.get(i);
+    	}
+    	return ids;
+    }
+
+    /**
+     * The form every path is looked up by, however it was given.
+     */
+    static String key(String path) {
+    	return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Notes the Pixels ids reported as each image finishes importing,
+     * against every file of its fileset: the event only names the file the
+     * fileset was found from, and the others would otherwise be imported
+     * again.
+     */
+    private class PixelsCollector implements IObserver {
+    	@Override
+    	public void update(IObservable importLibrary, ImportEvent event) {
+    		if (event instanceof ImportEvent.IMPORT_DONE) {
+    			ImportEvent.IMPORT_DONE done = (ImportEvent.IMPORT_DONE) event;
+    			if (done.pixels == null) {
+    				return;
+    			}
+    			String[] files = usedFiles.get(key(done.filename));
+    			if (files == null) {
+    				files = new String[] {done.filename};
+    			}
+    			for (String file : files) {
+    				List<Long> ids = pixelsIds.get(key(file));
+    				if (ids == null) {
+    					ids = new ArrayList<Long>();
+    					pixelsIds.put(key(file), ids);
+    				}
+    				for (Pixels p : done.pixels) {
+    					ids.add(p.getId().getValue());
+    				}
+    			}
+    		}
+    	}
+    }
+
+    void report() {
+        boolean report = config.sendReport.get();
+        boolean files = config.sendFiles.get();
+        boolean logs = config.sendLogFile.get();
+        if (report) {
+           handler.update(null, new ImportEvent.DEBUG_SEND(files, logs));
+        }
+    }
+
+    /**
+* Cleans up after a successful or unsuccessful image import. This method
+* only does the minimum required cleanup, so that it can be called
+* during shutdown.
+*/
+    @Override
+    public void cleanup() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            Log.error(e, "Could not close the reader.");
+        }
+        sessions.shutdown();
+        transfer.shutdown();
+    }
+
+    /**
+     * Logs in to the server named in the configuration.
+     */
+    static class StoreConnector implements SessionManager.Connector<OMEROMetadataStoreClient> {
+    	private final ImportConfig config;
+
+    	StoreConnector(ImportConfig config) {
+    		this.config = config;
+    	}
+
+    	@Override
+    	public OMEROMetadataStoreClient connect() throws Exception {
+    		OMEROMetadataStoreClient store = config.createStore();
+    		store.logVersionInfo(config.getIniVersionNumber());
+    		return store;
+    	}
+
+    	@Override
+    	public void ping(OMEROMetadataStoreClient store) {
+    		store.ping();
+    	}
+
+    	@Override
+    	public void close(OMEROMetadataStoreClient store) {
+    		store.logout();
+    	}
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+package omeroautouploader;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Something the import workers can hand a batch of files to. The real one is
+ * {@link UploadToOmero}; anything else is a stand-in for testing or
+ * benchmarking without a server.
+ */
+public interface Uploader {
+
+	/**
+	 * Import the given files to the target named in the given configuration,
+	 * returning 0 if all of them were imported.
+	 */
+	int start(String[] paths, ImportConfig target) throws Exception;
+
+	/**
+	 * Ids of the Pixels created for one of the files passed to the last
+	 * call to {@link #start}.
+	 */
+	long[] getImportedPixelsIds(String path);
+
+	/**
+	 * SHA-1 of one of the files passed to the last call to {@link #start},
+	 * as sent and verified against the server, or null if not known.
+	 */
+	String getUploadedHash(String path);
+
+	/**
+	 * Check that the server can be reached, without importing anything;
+	 * throws if it cannot.
+	 */
+	void probe() throws Exception;
+
+	/**
+	 * Release the connection; the uploader is not used again afterwards.
+	 */
+	void cleanup();
+
+	/**
+	 * Makes one uploader per import worker.
+	 */
+	interface Factory {
+		Uploader create() throws Exception;
+	}
+}
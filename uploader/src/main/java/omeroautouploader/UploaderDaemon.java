@@ -0,0 +1,521 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import ome.formats.importer.ImportConfig;
+import omero.model.Dataset;
+
+/**
+ * Runs the uploader without a GUI, watching any number of folders listed in
+ * a properties file:
+ *
+ * <pre>
+ * host=omero.example.org
+ * port=4064
+ * username=importer
+ * password=secret
+ * workers=8
+ * watch.maxKeys=8192
+ * watch.idleMinutes=60
+ * watch.pollSeconds=5
+ * bandwidth=0
+ * bandwidth.schedule=08:00=20M,19:00=0
+ * smallBatch=16M
+ * queue.memory=10000
+ * queue.inFlight=2000
+ * queue.maxSpill=1G
+ * retry.attempts=5
+ * retry.initialSeconds=30
+ * retry.maxMinutes=30
+ * archive=move
+ * archive.dir=/mnt/archive/imported
+ * log.level=INFO
+ * log.file=/var/log/omero-uploader/uploader.log
+ * log.fileSize=10M
+ * log.files=5
+ * log.console=true
+ * lease=true
+ * lease.node=uploader-1
+ * lease.ttlSeconds=120
+ * lease.heartbeatSeconds=30
+ * lease.maxClaims=100
+ * state.dir=/var/lib/omero-uploader
+ * metrics.port=9464
+ *
+ * server.main.host=omero1.example.org
+ * server.main.weight=3
+ * server.backup.host=omero2.example.org
+ * server.backup.port=4064
+ * server.backup.username=backup-importer
+ * server.backup.password=secret2
+ *
+ * root.confocal.path=/mnt/instruments/confocal
+ * root.confocal.targetClass=Dataset
+ * root.confocal.targetId=51
+ * root.confocal.serverTargetIds=main:51,backup:12
+ * root.slidescanner.path=/mnt/instruments/scanner
+ * root.slidescanner.serverTargetIds=main:52,backup:13
+ * root.slidescanner.recursive=false
+ * root.slidescanner.poll=true
+ * root.slidescanner.priority=1
+ * root.slidescanner.bandwidth=5M
+ * </pre>
+ *
+ * Set poll to true for folders on network shares, where the WatchService
+ * does not see new files.
+ *
+ * At most watch.maxKeys directories per file system hold a native watch.
+ * Directories beyond that, and those without events for watch.idleMinutes
+ * (0 for never), have their modification time checked every
+ * watch.pollSeconds instead, and are watched again once files appear in
+ * them.
+ *
+ * Rates are bytes per second with an optional K, M or G suffix, 0 meaning
+ * no limit. bandwidth limits all uploads together, unless
+ * bandwidth.schedule gives limits by time of day (see
+ * {@link BandwidthProfile}). A root's bandwidth limits that root alone.
+ * Roots with a higher priority are uploaded first, then batches of up to
+ * smallBatch bytes (0 to disable), and otherwise roots share the link
+ * evenly.
+ *
+ * Up to queue.memory stable files wait in memory for the pipeline, and
+ * beyond that on disk, up to queue.maxSpill bytes, after which new files
+ * are held back. At most queue.inFlight files are checksummed, batched or
+ * imported at once (see {@link ImportQueue}).
+ *
+ * A file that fails to import is tried up to retry.attempts times in all,
+ * waiting from retry.initialSeconds, doubling each time up to
+ * retry.maxMinutes, and is then listed in the {@link DeadLetterStore}.
+ *
+ * Once imported, and checked again against what was sent, files are
+ * moved below archive.dir if archive is move, deleted if it is delete, or
+ * left in place if it is none, the default (see {@link ArchiveStage}).
+ *
+ * Messages at log.level (DEBUG, INFO, WARN or ERROR) and above go to the
+ * console unless log.console is false, and to log.file if set, which is
+ * rotated every log.fileSize bytes keeping log.files files in all (see
+ * {@link Log}).
+ *
+ * Set lease to true when other uploaders, on this host or others, watch
+ * the same folders. Each file is then claimed with a lease file next to it
+ * before it is imported, so only one of them imports it (see
+ * {@link LeaseCoordinator}). lease.node names this uploader and must differ
+ * between them; it defaults to one made up from the process id and host.
+ * Leases of an uploader whose heartbeat is older than lease.ttlSeconds are
+ * taken over by the others, and each claims at most lease.maxClaims files
+ * at once, leaving the rest to the others.
+ *
+ * The import ledger, content index, dead letters and spilled queue are
+ * kept in state.dir, which only one uploader may use at a time. It
+ * defaults to a folder named after lease.node, or after the host if that
+ * is not set, below ~/.omero-auto-uploader (see {@link StateDirectory}).
+ *
+ * Metrics are served to Prometheus at http://localhost:metrics.port/metrics,
+ * 9464 unless given, or not at all if it is 0 (see {@link MetricsServer}).
+ * Uploaders sharing a host need a port each.
+ *
+ * Without any server.NAME settings, everything goes to host and port.
+ * With them, imports are spread over those servers by weight (1 unless
+ * given) and by how fast each has been importing, and move away from a
+ * server that fails (see {@link ImportRouter}). A server's port, username
+ * and password default to the ones above. Ids differ between servers, so
+ * each root must then give its target id on every server in its
+ * serverTargetIds, as a list of NAME:ID, and its targetId may be left out.
+ *
+ * All folders share one import pipeline, and so one set of import workers
+ * with sessions to each server, and one WatchService per file system.
+ */
+public class UploaderDaemon {
+
+	private final ImportPipeline pipeline;
+	private final Map<FileSystem, WatchDir> watchers = new LinkedHashMap<FileSystem, WatchDir>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	public UploaderDaemon(Properties props) throws IOException {
+		logging(props);
+		ImportConfig config = connection(props);
+		int workers = Integer.parseInt(props.getProperty("workers",
+			Integer.toString(ImportWorkerPool.DEFAULT_WORKERS)));
+		ReaderCache readerCache = new ReaderCache();
+		ImportRouter router = new ImportRouter(servers(props, config, readerCache));
+		List<WatchRoot> roots = roots(props, config);
+		checkTargets(props, roots, router.getEndpoints());
+		StateDirectory state = state(props);
+		try {
+			this.pipeline = new ImportPipeline(router, state, readerCache, workers, scheduler(props),
+				queue(props, state), retry(props), archive(props, roots), leases(props));
+		} catch (IOException | RuntimeException e) {
+			state.close();
+			throw e;
+		}
+		for (ImportRouter.Endpoint endpoint : router.getEndpoints()) {
+			Log.info("Importing to server %s with weight %d", endpoint, endpoint.weight);
+		}
+		int metricsPort = Integer.parseInt(props.getProperty("metrics.port",
+			Integer.toString(MetricsServer.DEFAULT_PORT)).trim());
+		if (metricsPort > 0) {
+			MetricsServer.ensureStarted(metricsPort);
+		}
+
+		for (WatchRoot root : roots) {
+			FileSystem fs = root.path.getFileSystem();
+			WatchDir watcher = watchers.get(fs);
+			if (watcher == null) {
+				watcher = new WatchDir(pipeline, fs, budget(props));
+				watchers.put(fs, watcher);
+			}
+			Log.info("Watching %s", root);
+			watcher.addRoot(root);
+		}
+		if (watchers.isEmpty()) {
+			throw new IllegalArgumentException("No watch roots configured");
+		}
+	}
+
+	/**
+	 * Start a watch loop for each file system.
+	 */
+	public void start() {
+		for (final WatchDir watcher : watchers.values()) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watcher.processEvents();
+				}
+			}, "watch-" + threads.size());
+			threads.add(t);
+			t.start();
+		}
+	}
+
+	public void stop() throws IOException {
+		for (WatchDir watcher : watchers.values()) {
+			watcher.closeService();
+		}
+		pipeline.shutdown();
+		MetricsServer.stop();
+	}
+
+	/**
+	 * Server and login settings shared by every root.
+	 */
+	static ImportConfig connection(Properties props) {
+		ImportConfig config = new ImportConfig();
+		config.email.set("");
+		config.sendFiles.set(true);
+		config.sendReport.set(false);
+		config.contOnError.set(false);
+		config.debug.set(false);
+		config.hostname.set(props.getProperty("host", "localhost"));
+		config.port.set(Integer.parseInt(props.getProperty("port", "4064")));
+		config.username.set(required(props, "username"));
+		config.password.set(required(props, "password"));
+		return config;
+	}
+
+	/**
+	 * One endpoint for each distinct server.NAME prefix in the properties,
+	 * or for the host and port if there are none.
+	 */
+	static List<ImportRouter.Endpoint> servers(Properties props, ImportConfig connection,
+			ReaderCache readerCache) {
+		List<ImportRouter.Endpoint> endpoints = new ArrayList<ImportRouter.Endpoint>();
+		for (String name : names(props, "server.")) {
+			String prefix = "server." + name + ".";
+			ImportConfig config = copy(connection);
+			config.hostname.set(required(props, prefix + "host"));
+			config.port.set(Integer.parseInt(props.getProperty(prefix + "port",
+				Integer.toString(connection.port.get()))));
+			config.username.set(props.getProperty(prefix + "username", connection.username.get()).trim());
+			config.password.set(props.getProperty(prefix + "password", connection.password.get()).trim());
+			int weight = Integer.parseInt(props.getProperty(prefix + "weight", "1"));
+			endpoints.add(ImportRouter.Endpoint.server(name, weight, config, readerCache));
+		}
+		if (endpoints.isEmpty()) {
+			endpoints.add(ImportRouter.Endpoint.server(connection.hostname.get(), 1, connection, readerCache));
+		}
+		return endpoints;
+	}
+
+	/**
+	 * Upload order and bandwidth limits shared by every root.
+	 */
+	static UploadScheduler scheduler(Properties props) {
+		String schedule = props.getProperty("bandwidth.schedule");
+		BandwidthProfile profile = schedule != null && !schedule.trim().isEmpty()
+			? BandwidthProfile.parse(schedule)
+			: BandwidthProfile.constant(BandwidthProfile.parseRate(props.getProperty("bandwidth", "0")));
+		long smallBatch = BandwidthProfile.parseRate(props.getProperty("smallBatch",
+			Long.toString(UploadScheduler.DEFAULT_SMALL_BATCH)));
+		return new UploadScheduler(profile, smallBatch);
+	}
+
+	/**
+	 * The locked folder this uploader keeps its ledger and queue in.
+	 */
+	static StateDirectory state(Properties props) throws IOException {
+		String dir = props.getProperty("state.dir");
+		return StateDirectory.lock(dir != null && !dir.trim().isEmpty()
+			? Paths.get(dir.trim())
+			: StateDirectory.defaultPath(props.getProperty("lease.node")));
+	}
+
+	/**
+	 * How many stable files wait in memory, on disk and in the pipeline.
+	 */
+	static ImportQueue queue(Properties props, StateDirectory state) throws IOException {
+		int memory = Integer.parseInt(props.getProperty("queue.memory",
+			Integer.toString(ImportQueue.DEFAULT_MEMORY)));
+		int inFlight = Integer.parseInt(props.getProperty("queue.inFlight",
+			Integer.toString(ImportQueue.DEFAULT_IN_FLIGHT)));
+		long maxSpill = BandwidthProfile.parseRate(props.getProperty("queue.maxSpill",
+			Long.toString(ImportQueue.DEFAULT_MAX_SPILL)));
+		return new ImportQueue(state.resolve(ImportQueue.DIRECTORY_NAME), memory, inFlight, maxSpill);
+	}
+
+	/**
+	 * Where messages go, and which.
+	 */
+	static void logging(Properties props) throws IOException {
+		Log.Level level = Log.Level.valueOf(
+			props.getProperty("log.level", "INFO").trim().toUpperCase(Locale.ENGLISH));
+		String file = props.getProperty("log.file");
+		long fileSize = BandwidthProfile.parseRate(props.getProperty("log.fileSize",
+			Long.toString(Log.DEFAULT_FILE_SIZE)));
+		int files = Integer.parseInt(props.getProperty("log.files", Integer.toString(Log.DEFAULT_FILES)));
+		boolean console = Boolean.parseBoolean(props.getProperty("log.console", "true"));
+		Log.configure(level, console, file == null || file.trim().isEmpty() ? null : Paths.get(file.trim()),
+			fileSize, files);
+	}
+
+	/**
+	 * What happens to files once they are imported. The archive may not be
+	 * inside a watched folder.
+	 */
+	static ArchiveStage archive(Properties props, List<WatchRoot> roots) {
+		ArchiveStage.Mode mode = ArchiveStage.parseMode(props.getProperty("archive", "none"));
+		Path dir = null;
+		if (mode == ArchiveStage.Mode.MOVE) {
+			dir = Paths.get(required(props, "archive.dir")).toAbsolutePath();
+			for (WatchRoot root : roots) {
+				if (dir.startsWith(root.path.toAbsolutePath())) {
+					throw new IllegalArgumentException("archive.dir is inside watched folder " + root.path);
+				}
+			}
+		}
+		return new ArchiveStage(mode, dir);
+	}
+
+	/**
+	 * How files are shared out with other uploaders watching the same
+	 * folders, or null if there are none.
+	 */
+	static LeaseCoordinator leases(Properties props) {
+		if (!Boolean.parseBoolean(props.getProperty("lease", "false").trim())) {
+			return null;
+		}
+		String node = props.getProperty("lease.node", LeaseCoordinator.defaultNode()).trim();
+		long ttlSeconds = Long.parseLong(props.getProperty("lease.ttlSeconds",
+			Long.toString(LeaseCoordinator.DEFAULT_TTL / 1000L)));
+		long heartbeatSeconds = Long.parseLong(props.getProperty("lease.heartbeatSeconds",
+			Long.toString(LeaseCoordinator.DEFAULT_HEARTBEAT / 1000L)));
+		int maxClaims = Integer.parseInt(props.getProperty("lease.maxClaims",
+			Integer.toString(LeaseCoordinator.DEFAULT_MAX_CLAIMS)));
+		LeaseCoordinator leases = new LeaseCoordinator(node, ttlSeconds * 1000L, heartbeatSeconds * 1000L,
+			maxClaims);
+		Log.info("Sharing watched folders with other uploaders as node %s", leases.getNode());
+		return leases;
+	}
+
+	/**
+	 * How often failed files are tried again.
+	 */
+	static RetryPolicy retry(Properties props) {
+		int attempts = Integer.parseInt(props.getProperty("retry.attempts",
+			Integer.toString(RetryPolicy.DEFAULT_ATTEMPTS)));
+		long initialSeconds = Long.parseLong(props.getProperty("retry.initialSeconds",
+			Long.toString(RetryPolicy.DEFAULT_INITIAL_DELAY / 1000L)));
+		long maxMinutes = Long.parseLong(props.getProperty("retry.maxMinutes",
+			Long.toString(RetryPolicy.DEFAULT_MAX_DELAY / 60000L)));
+		return new RetryPolicy(attempts, initialSeconds * 1000L, maxMinutes * 60000L);
+	}
+
+	/**
+	 * Native watch limits for one file system.
+	 */
+	static WatchKeyBudget budget(Properties props) {
+		int maxKeys = Integer.parseInt(props.getProperty("watch.maxKeys",
+			Integer.toString(WatchKeyBudget.DEFAULT_MAX_KEYS)));
+		long idleMinutes = Long.parseLong(props.getProperty("watch.idleMinutes",
+			Long.toString(WatchKeyBudget.DEFAULT_IDLE_TIME / 60000L)));
+		long pollSeconds = Long.parseLong(props.getProperty("watch.pollSeconds",
+			Long.toString(WatchKeyBudget.DEFAULT_POLL_INTERVAL / 1000L)));
+		return new WatchKeyBudget(maxKeys, idleMinutes * 60000L, pollSeconds * 1000L);
+	}
+
+	/**
+	 * One root for each distinct root.NAME prefix in the properties.
+	 */
+	static List<WatchRoot> roots(Properties props, ImportConfig connection) {
+		List<WatchRoot> roots = new ArrayList<WatchRoot>();
+		for (String name : names(props, "root.")) {
+			String prefix = "root." + name + ".";
+			Path path = Paths.get(required(props, prefix + "path"));
+			boolean recursive = Boolean.parseBoolean(props.getProperty(prefix + "recursive", "true"));
+			boolean poll = Boolean.parseBoolean(props.getProperty(prefix + "poll", "false"));
+			String targetClass = props.getProperty(prefix + "targetClass", Dataset.class.getName());
+			if (targetClass.indexOf('.') < 0) {
+				targetClass = "omero.model." + targetClass;
+			}
+			int priority = Integer.parseInt(props.getProperty(prefix + "priority", "0"));
+			long bandwidth = BandwidthProfile.parseRate(props.getProperty(prefix + "bandwidth", "0"));
+			Map<String, ImportConfig> serverTargets = new HashMap<String, ImportConfig>();
+			String ids = props.getProperty(prefix + "serverTargetIds", "");
+			String first = null;
+			for (String entry : ids.split(",")) {
+				if (entry.trim().isEmpty()) {
+					continue;
+				}
+				int colon = entry.lastIndexOf(':');
+				if (colon < 0) {
+					throw new IllegalArgumentException("Expected NAME:ID in " + prefix + "serverTargetIds: " + entry);
+				}
+				serverTargets.put(entry.substring(0, colon).trim(), target(connection, targetClass,
+					Long.parseLong(entry.substring(colon + 1).trim())));
+				if (first == null) {
+					first = entry.substring(colon + 1).trim();
+				}
+			}
+			// With several servers targetId is only shown in the log
+			String targetId = props.getProperty(prefix + "targetId", first);
+			if (targetId == null) {
+				throw new IllegalArgumentException("Missing setting: " + prefix + "targetId");
+			}
+			roots.add(new WatchRoot(path, recursive, poll, target(connection, targetClass,
+				Long.parseLong(targetId.trim())), priority, bandwidth, serverTargets));
+		}
+		return roots;
+	}
+
+	/**
+	 * Refuse roots that do not say where their images go on every server,
+	 * as ids on one server mean nothing on another.
+	 */
+	static void checkTargets(Properties props, List<WatchRoot> roots, List<ImportRouter.Endpoint> endpoints) {
+		boolean several = !names(props, "server.").isEmpty();
+		for (WatchRoot root : roots) {
+			if (!several) {
+				if (!root.serverTargets.isEmpty()) {
+					throw new IllegalArgumentException("serverTargetIds given for " + root.path
+						+ " but no server.NAME settings");
+				}
+				continue;
+			}
+			for (ImportRouter.Endpoint endpoint : endpoints) {
+				if (!root.serverTargets.containsKey(endpoint.name)) {
+					throw new IllegalArgumentException("No target id on server " + endpoint.name + " for "
+						+ root.path + "; list it in that root's serverTargetIds");
+				}
+			}
+			for (String server : root.serverTargets.keySet()) {
+				boolean known = false;
+				for (ImportRouter.Endpoint endpoint : endpoints) {
+					known |= endpoint.name.equals(server);
+				}
+				if (!known) {
+					throw new IllegalArgumentException("Unknown server " + server + " in serverTargetIds of "
+						+ root.path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The distinct NAME parts of keys of the form prefix.NAME.setting.
+	 */
+	private static TreeSet<String> names(Properties props, String prefix) {
+		TreeSet<String> names = new TreeSet<String>();
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(prefix) && key.lastIndexOf('.') > prefix.length()) {
+				names.add(key.substring(prefix.length(), key.lastIndexOf('.')));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * A copy of the connection settings pointing at a particular target.
+	 */
+	static ImportConfig target(ImportConfig connection, String targetClass, long targetId) {
+		ImportConfig config = copy(connection);
+		config.targetClass.set(targetClass);
+		config.targetId.set(targetId);
+		return config;
+	}
+
+	/**
+	 * A copy of the connection settings.
+	 */
+	static ImportConfig copy(ImportConfig connection) {
+		ImportConfig config = new ImportConfig();
+		config.email.set(connection.email.get());
+		config.sendFiles.set(connection.sendFiles.get());
+		config.sendReport.set(connection.sendReport.get());
+		config.contOnError.set(connection.contOnError.get());
+		config.debug.set(connection.debug.get());
+		config.hostname.set(connection.hostname.get());
+		config.port.set(connection.port.get());
+		config.username.set(connection.username.get());
+		config.password.set(connection.password.get());
+		return config;
+	}
+
+	private static String required(Properties props, String key) {
+		String value = props.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			throw new IllegalArgumentException("Missing setting: " + key);
+		}
+		return value.trim();
+	}
+
+	static void usage() {
+		System.err.println("usage: java omeroautouploader.UploaderDaemon config.properties");
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			usage();
+		}
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+			props.load(in);
+		}
+		final UploaderDaemon daemon = new UploaderDaemon(props);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					daemon.stop();
+				} catch (IOException e) {
+					Log.error(e, "Could not stop cleanly.");
+				}
+				Log.flush();
+			}
+		});
+		daemon.start();
+	}
+}
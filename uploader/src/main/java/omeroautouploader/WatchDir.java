@@ -0,0 +1,614 @@
+package omeroautouploader;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * Watches one or more folders on a single file system and passes files that
+ * have stopped changing to an {@link ImportPipeline}.
+ *
+ * Directories created under a recursive root are watched as they appear.
+ * How many directories hold a native watch at once is bounded by a
+ * {@link WatchKeyBudget}; the rest are polled until they become active.
+ * Polled directories, and roots that are polled throughout by a
+ * {@link PollingWatcher}, are looked at on a thread of their own, which
+ * hands what it finds to the watch loop.
+ */
+public class WatchDir {
+		 
+	    private final WatchService watcher;
+	    private final Map<WatchKey,Path> keys;
+	    private final List<WatchRoot> roots = new CopyOnWriteArrayList<WatchRoot>();
+	    private final List<PollingWatcher> pollers = new ArrayList<PollingWatcher>();
+	    private boolean trace = false;
+		private final ImportPipeline pipeline;
+		private final ImportLedger ledger;
+		private final DeadLetterStore deadLetters;
+		private final boolean ownsPipeline;
+		private final WatchKeyBudget budget;
+		private boolean warnedLimit = false;
+	    @SuppressWarnings("unchecked")
+	    static <T> WatchEvent<T> cast(WatchEvent<?> event) {
+	        return (WatchEvent<T>)event;
+	    }
+
+		private final FileStabilityTracker tracker = new FileStabilityTracker();
+		private final DirectorySnapshots snapshots = new DirectorySnapshots();
+		private final FormatClassifier classifier = new FormatClassifier();
+
+		/** Files found by startup scans and polls that still need watching until stable. */
+		private final Queue<Path> backlog = new ConcurrentLinkedQueue<Path>();
+		private final AtomicInteger scans = new AtomicInteger();
+
+		/** Polled directories whose modification time has moved. */
+		private final Queue<Path> polledChanges = new ConcurrentLinkedQueue<Path>();
+
+		/** Files untouched for this long when found at startup are taken as stable. */
+		private static final long BACKLOG_QUIET = 10000L;
+
+		/** How often the loop checks the backlog while a startup scan runs. */
+		private static final long BACKLOG_POLL = 100L;
+	    	
+	    /**
+	     * Register the given directory with the WatchService
+	     */
+	    void register(Path dir) throws IOException {
+	        WatchKey key;
+	        try {
+	            key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE);
+	        } catch (IOException e) {
+	            if (!Files.isDirectory(dir)) {
+	                throw e;
+	            }
+	            // Most likely out of native watches, so poll it instead
+	            if (!warnedLimit) {
+	                warnedLimit = true;
+	                Log.warn("Could not watch '%s' (%s), polling it instead. "
+	                    + "Lower watch.maxKeys or raise the system's watch limit.", dir, e.getMessage());
+	            }
+	            budget.unwatchable(dir);
+	            return;
+	        }
+	        Path prev = keys.get(key);
+	        if (trace) {
+	            if (prev == null) {
+	                Log.debug("register: %s", dir);
+	            } else {
+	                if (!dir.equals(prev)) {
+	                    Log.debug("update: %s -> %s", prev, dir);
+	                }
+	            }
+	        }
+	        if (prev != null && !dir.equals(prev)) {
+	            // moved, and its key with it
+	            budget.forget(prev);
+	        }
+	        keys.put(key, dir);
+	        for (WatchKey evicted : budget.watched(dir, key, System.currentTimeMillis())) {
+	            cancel(evicted);
+	        }
+	    }
+
+	    /**
+	     * Drop the native watch on a directory that is now polled, or gone.
+	     */
+	    private void cancel(WatchKey key) {
+	        Path dir = keys.remove(key);
+	        key.cancel();
+	        if (trace && dir != null) {
+	            Log.debug("poll: %s", dir);
+	        }
+	    }
+	 
+	    /**
+	     * Creates a WatchService and registers the given directory
+	     */
+	    WatchDir(Path dir, boolean recursive, ImportConfig config) throws IOException {
+	        this(dir, recursive, config, ImportWorkerPool.DEFAULT_WORKERS);
+	    }
+
+	    /**
+	     * Creates a WatchService and registers the given directory, importing
+	     * new files on the given number of worker threads.
+	     */
+	    WatchDir(Path dir, boolean recursive, ImportConfig config, int importWorkers) throws IOException {
+	        this(new ImportPipeline(config, importWorkers), dir.getFileSystem(), true);
+	        addRoot(new WatchRoot(dir, recursive, config));
+	    }
+
+	    /**
+	     * Creates a WatchService for the given file system feeding a shared
+	     * pipeline. Folders are added with {@link #addRoot}.
+	     */
+	    WatchDir(ImportPipeline pipeline, FileSystem fs) throws IOException {
+	        this(pipeline, fs, new WatchKeyBudget());
+	    }
+
+	    /**
+	     * As above, holding at most as many native watches as the budget allows.
+	     */
+	    WatchDir(ImportPipeline pipeline, FileSystem fs, WatchKeyBudget budget) throws IOException {
+	        this(pipeline, fs, budget, false);
+	    }
+
+	    private WatchDir(ImportPipeline pipeline, FileSystem fs, boolean ownsPipeline) throws IOException {
+	        this(pipeline, fs, new WatchKeyBudget(), ownsPipeline);
+	    }
+
+	    private WatchDir(ImportPipeline pipeline, FileSystem fs, WatchKeyBudget budget,
+	            boolean ownsPipeline) throws IOException {
+			this.pipeline = pipeline;
+			this.ledger = pipeline.getLedger();
+			this.deadLetters = pipeline.getDeadLetters();
+			this.ownsPipeline = ownsPipeline;
+			this.budget = budget;
+	        this.watcher = fs.newWatchService();
+	        this.keys = new ConcurrentHashMap<WatchKey,Path>();
+	    }
+
+	    /**
+	     * Start watching another folder. Must be called before
+	     * {@link #processEvents} is running.
+	     *
+	     * The folder's top level is watched straight away; its subdirectories
+	     * are registered, and the files already in it picked up for import,
+	     * by a parallel scan that carries on in the background.
+	     */
+	    void addRoot(WatchRoot root) throws IOException {
+	        roots.add(root);
+	        if (root.poll) {
+	            // the first poll reports everything already there
+	            pollers.add(new PollingWatcher(root));
+	        } else {
+	            register(root.path);
+	            Log.info("Scanning %s ...", root.path);
+	            scans.incrementAndGet();
+	            BacklogScanner.start(root, new BacklogScanner.Sink() {
+	                @Override
+	                public void directory(Path dir) throws IOException {
+	                    register(dir);
+	                }
+
+	                @Override
+	                public void file(Path file, BasicFileAttributes attrs) {
+	                    handleExistingFile(file, attrs);
+	                }
+
+	                @Override
+	                public void done(Path dir) {
+	                    scans.decrementAndGet();
+	                    Log.info("Finished scanning %s.", dir);
+	                }
+	            });
+	        }
+	 
+	        // enable trace after initial registration
+	        this.trace = true;
+
+	        // pick up where the last run left off; the scan above hands these
+	        // on again, so they are only counted, not tracked a second time
+	        int resumed = 0;
+	        for (Path file : ledger.unfinished()) {
+	            if (root.contains(file)) {
+	                resumed++;
+	            }
+	        }
+	        if (resumed > 0) {
+	            Log.info("Resuming %d files left from the last run.", resumed);
+	        }
+	    }
+
+	    /**
+	     * The root a file was found under, or null if it is in none of them.
+	     */
+	    private WatchRoot rootFor(Path file) {
+	        for (WatchRoot root : roots) {
+	            if (root.contains(file)) {
+	                return root;
+	            }
+	        }
+	        return null;
+	    }
+	    
+	    /**
+	     * Hand every file that has stopped changing over to be checksummed and
+	     * imported.
+	     */
+	    private void handleExpiredWaitTimes(long currentTime) {
+	        for (Path child : tracker.expire(currentTime)) {
+	            BasicFileAttributes attrs;
+	            try {
+	                attrs = Files.readAttributes(child, BasicFileAttributes.class);
+	            } catch (IOException e) {
+	                snapshots.remove(child);
+	                continue;
+	            }
+	            snapshots.record(child, attrs);
+	            handleStableFile(child, attrs);
+	        }
+	    }
+
+	    /**
+	     * Send a file that is no longer changing on to the pipeline, unless it
+	     * is not an image or this version of it is already on the server.
+	     * Called from the watch loop and from startup scans.
+	     */
+	    private void handleStableFile(Path child, BasicFileAttributes attrs) {
+	        if (!classifier.isImage(child)) {
+	            Log.debug("File '%s' is not a recognised image file.", child);
+	            return;
+	        }
+	        WatchRoot root = rootFor(child);
+	        if (root == null) {
+	            return;
+	        }
+	        long size = attrs.size();
+	        long modified = attrs.lastModifiedTime().toMillis();
+	        if (ledger.isImported(child, size, modified)) {
+	            return;
+	        }
+	        if (deadLetters.contains(child, size, modified)) {
+	            Log.info("File '%s' was given up on; not tried again until it changes.", child);
+	            return;
+	        }
+	        Log.info("New file '%s' is stable.", child);
+	        record(child, ImportLedger.State.STABLE, size, modified);
+	        pipeline.submit(new ImportItem(child, size, modified, root));
+	    }
+
+	    /**
+	     * A file found by a startup scan. One that has not been touched for a
+	     * while goes straight to the pipeline; anything more recent is handed
+	     * to the watch loop to wait until it is stable.
+	     */
+	    private void handleExistingFile(Path file, BasicFileAttributes attrs) {
+	        snapshots.record(file, attrs);
+	        if (classifier.classify(file) == FormatClassifier.Kind.IGNORED) {
+	            return;
+	        }
+	        long age = System.currentTimeMillis() - attrs.lastModifiedTime().toMillis();
+	        if (age >= BACKLOG_QUIET) {
+	            handleStableFile(file, attrs);
+	        } else {
+	            backlog.add(file);
+	        }
+	    }
+
+	    private void record(Path file, ImportLedger.State state, long size, long modified) {
+	        try {
+	            ledger.record(file, state, size, modified);
+	        } catch (IOException e) {
+	            Log.error(e, "Could not record '%s' as %s.", file, state);
+	        }
+	    }
+
+	    private void handleWatchEvents(WatchKey key, Path dir) {
+	        long now = System.currentTimeMillis();
+	        for (WatchEvent<?> event : key.pollEvents()) {
+	            handleWatchEvent(event, dir, now);
+	        }
+	    }
+
+	    private void handleWatchEvent(WatchEvent<?> event, Path dir, long now) {
+	        Kind<?> kind = event.kind();
+
+	        // Events were dropped for this directory, so work out what we missed
+	        if (kind == OVERFLOW) {
+	            handleOverflow(dir, now);
+	            return;
+	        }
+
+	        // Context for directory entry event is the file name of entry
+	        WatchEvent<Path> ev = cast(event);
+	        Path child = dir.resolve(ev.context());
+
+	        if (kind == ENTRY_DELETE) {
+	            tracker.forget(child);
+	            snapshots.remove(child);
+	            classifier.forget(child);
+	            WatchKey watched = budget.forget(child);
+	            if (watched != null) {
+	                cancel(watched);
+	            }
+	            snapshots.forget(child);
+	            return;
+	        }
+
+	        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+	            handleNewDirectory(child);
+	            return;
+	        }
+
+	        handleNewFile(child, now);
+	    }
+
+	    /**
+	     * Compare the directory against its snapshot and treat every file that
+	     * is new or changed as if an event had arrived for it.
+	     */
+	    private void handleOverflow(Path dir, long now) {
+	        Log.warn("Events lost in '%s', reconciling.", dir);
+	        List<Path> subdirs = new ArrayList<Path>();
+	        try {
+	            for (Path child : snapshots.reconcile(dir, subdirs)) {
+	                handleNewFile(child, now);
+	            }
+	        } catch (IOException e) {
+	            Log.error(e, "Could not reconcile '%s'.", dir);
+	        }
+	        for (Path sub : subdirs) {
+	            handleNewDirectory(sub);
+	        }
+	    }
+
+	    /**
+	     * Watch a directory created, or moved, into a recursive root, and pick
+	     * up whatever was put in it before the watch was in place.
+	     */
+	    private void handleNewDirectory(Path dir) {
+	        WatchRoot root = rootFor(dir);
+	        if (root == null || !root.recursive || budget.isKnown(dir)) {
+	            return;
+	        }
+	        scans.incrementAndGet();
+	        BacklogScanner.start(dir, true, new BacklogScanner.Sink() {
+	            @Override
+	            public void directory(Path dir) throws IOException {
+	                register(dir);
+	            }
+
+	            @Override
+	            public void file(Path file, BasicFileAttributes attrs) {
+	                // all new, so wait for each to be stable however old it looks
+	                snapshots.record(file, attrs);
+	                backlog.add(file);
+	            }
+
+	            @Override
+	            public void done(Path dir) {
+	                scans.decrementAndGet();
+	            }
+	        });
+	    }
+
+	    /**
+	     * Demote directories that have gone quiet, and look again at the
+	     * polled directories the polling thread found to have changed.
+	     */
+	    private void handleBudget(long now) {
+	        for (WatchKey key : budget.demoteIdle(now)) {
+	            cancel(key);
+	        }
+	        Path dir;
+	        while ((dir = polledChanges.poll()) != null) {
+	            handlePolledChange(dir, now);
+	        }
+	    }
+
+	    /**
+	     * List a polled directory that has changed. If anything new has turned
+	     * up in it, it is active again and goes back to a native watch.
+	     */
+	    private void handlePolledChange(Path dir, long now) {
+	        List<Path> subdirs = new ArrayList<Path>();
+	        List<Path> changed;
+	        try {
+	            changed = snapshots.reconcile(dir, subdirs);
+	        } catch (IOException e) {
+	            return;
+	        }
+	        List<Path> unknown = new ArrayList<Path>();
+	        for (Path sub : subdirs) {
+	            if (!budget.isKnown(sub)) {
+	                unknown.add(sub);
+	            }
+	        }
+	        if (changed.isEmpty() && unknown.isEmpty()) {
+	            return;
+	        }
+	        try {
+	            register(dir);
+	            // anything that arrived while it was being listed
+	            changed.addAll(snapshots.reconcile(dir));
+	        } catch (IOException e) {
+	            Log.error(e, "Could not watch '%s' again.", dir);
+	        }
+	        for (Path child : changed) {
+	            handleNewFile(child, now);
+	        }
+	        for (Path sub : unknown) {
+	            handleNewDirectory(sub);
+	        }
+	    }
+
+	    private void handleNewFile(Path child, long now) {
+	        if (classifier.classify(child) == FormatClassifier.Kind.IGNORED) {
+	            Log.debug("New file '%s' is not a recognised image file.", child);
+	            return;
+	        }
+	        //wait for the writer to finish before importing
+	        Log.info("New file '%s' detected.", child);
+	        ImportLedger.State state = ledger.state(child);
+	        if (state == null || state == ImportLedger.State.FAILED) {
+	            record(child, ImportLedger.State.DETECTED, -1L, -1L);
+	        }
+	        tracker.touch(child, now);
+	    }
+	 
+	    /**
+	     * Process all events for keys queued to the watcher, importing files
+	     * once they have stopped changing.
+	     */
+	    void processEvents() {
+	        Thread polls = new Thread(new Runnable() {
+	            @Override
+	            public void run() {
+	                runPolls();
+	            }
+	        }, Thread.currentThread().getName() + "-poll");
+	        polls.setDaemon(true);
+	        polls.start();
+	        try {
+	            watchEvents();
+	        } finally {
+	            polls.interrupt();
+	            // files not yet stable are found again on the next start
+	            tracker.clear();
+	        }
+	    }
+
+	    private void watchEvents() {
+	        for (;;) {
+	 
+	            // wait for key to be signalled, or for the next file or poll to come due
+	            WatchKey key;
+	            try {
+	                long deadline = tracker.nextDeadline();
+	                for (PollingWatcher poller : pollers) {
+	                    // once due, look in on the poll until it has finished
+	                    deadline = Math.min(deadline,
+	                        Math.max(poller.nextPoll(), System.currentTimeMillis() + BACKLOG_POLL));
+	                }
+	                if (!budget.isEmpty()) {
+	                    deadline = Math.min(deadline,
+	                        Math.max(budget.nextCheck(), System.currentTimeMillis() + BACKLOG_POLL));
+	                }
+	                if (scans.get() > 0 || !backlog.isEmpty() || !polledChanges.isEmpty()) {
+	                    deadline = Math.min(deadline, System.currentTimeMillis() + BACKLOG_POLL);
+	                }
+	                if (deadline == Long.MAX_VALUE) {
+	                    key = watcher.take();
+	                } else {
+	                    long timeout = Math.max(0L, deadline - System.currentTimeMillis());
+	                    key = watcher.poll(timeout, TimeUnit.MILLISECONDS);
+	                }
+	            } catch (InterruptedException x) {
+	                return;
+	            } catch (ClosedWatchServiceException x) {
+	                return;
+	            }
+
+	            if (key != null) {
+	                Path dir = keys.get(key);
+	                if (dir == null) {
+	                    // a cancelled key belongs to a directory that is now polled
+	                    if (key.isValid()) {
+	                        Log.warn("WatchKey not recognized!!");
+	                    }
+	                } else {
+	                    budget.active(dir, System.currentTimeMillis());
+	                    handleWatchEvents(key, dir);
+	                }
+
+	                // reset key and remove from set if directory no longer accessible
+	                boolean valid = key.reset();
+	                if (!valid) {
+	                    keys.remove(key);
+	                    if (dir != null && !Files.isDirectory(dir)) {
+	                        budget.forget(dir);
+	                        snapshots.forget(dir);
+	                    }
+	 
+	                    // all directories are inaccessible
+	                    if (keys.isEmpty() && budget.isEmpty() && pollers.isEmpty()) {
+	                        break;
+	                    }
+	                }
+	            }
+
+	            handleBudget(System.currentTimeMillis());
+	            handleBacklog(System.currentTimeMillis());
+	            handleExpiredWaitTimes(System.currentTimeMillis());
+	        }
+	    }
+
+	    /**
+	     * Start tracking the recent files found by startup scans and polls.
+	     */
+	    private void handleBacklog(long now) {
+	        Path file;
+	        while ((file = backlog.poll()) != null) {
+	            handleNewFile(file, now);
+	        }
+	    }
+
+	    /**
+	     * Run each poll and budget check as it comes due, on the polling
+	     * thread, and pass what they find to the watch loop: new files to be
+	     * treated like new file events, and changed directories to be listed.
+	     */
+	    private void runPolls() {
+	        try {
+	            for (;;) {
+	                if (budget.nextCheck() <= System.currentTimeMillis()) {
+	                    scans.incrementAndGet();
+	                    try {
+	                        polledChanges.addAll(budget.check(System.currentTimeMillis()));
+	                    } finally {
+	                        scans.decrementAndGet();
+	                    }
+	                }
+	                long next = budget.nextCheck();
+	                for (PollingWatcher poller : pollers) {
+	                    long now = System.currentTimeMillis();
+	                    if (poller.nextPoll() <= now) {
+	                        scans.incrementAndGet();
+	                        try {
+	                            backlog.addAll(poller.poll(now));
+	                        } catch (RuntimeException e) {
+	                            Log.error(e, "Could not poll '%s'.", poller.getRoot().path);
+	                            next = Math.min(next, now + PollingWatcher.MIN_INTERVAL);
+	                            continue;
+	                        } finally {
+	                            scans.decrementAndGet();
+	                        }
+	                    }
+	                    next = Math.min(next, poller.nextPoll());
+	                }
+	                Thread.sleep(Math.max(1L, next - System.currentTimeMillis()));
+	            }
+	        } catch (InterruptedException e) {
+	            // the watch loop has ended
+	        }
+	    }
+	 
+	    static void usage() {
+	        System.err.println("usage: java omeroautouploader.WatchDir [-r] dir");
+	        System.exit(-1);
+	    }
+
+
+		public void closeService() throws IOException {
+			watcher.close();
+			if (ownsPipeline) {
+				pipeline.shutdown();
+			}
+			Log.info("file closed");
+		}
+
+}
@@ -0,0 +1,211 @@
+package omeroautouploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which directories hold a native watch and which are only polled,
+ * so that a large archive does not use up the operating system's watch
+ * limit (fs.inotify.max_user_watches on Linux).
+ *
+ * Watched directories are kept in least recently active order. Once more
+ * than the budget are watched, or one has seen no events for the idle time,
+ * the least recently active is demoted: its key is cancelled and only the
+ * directory's modification time is checked from then on. A demoted
+ * directory whose modification time moves is handed back to be listed, and
+ * is promoted to a native watch again if anything new turned up in it.
+ *
+ * Thread safe, as startup scans register directories from several threads,
+ * and {@link #check}, which may have many directories to look at on a slow
+ * share, is run away from the watch loop.
+ */
+public class WatchKeyBudget {
+
+	public static final int DEFAULT_MAX_KEYS = 8192;
+	public static final long DEFAULT_IDLE_TIME = 3600000L;
+	public static final long DEFAULT_POLL_INTERVAL = 5000L;
+
+	/** Modification time recorded for a directory we have not looked at. */
+	private static final long UNKNOWN = Long.MIN_VALUE;
+
+	private final int maxKeys;
+	private final long idleTime;
+	private final long pollInterval;
+
+	/** Watched directories, least recently active first. */
+	private final LinkedHashMap<Path, Watched> watched = new LinkedHashMap<Path, Watched>(16, 0.75f, true);
+	/** Polled directories and their modification time when last looked at. */
+	private final Map<Path, Long> demoted = new HashMap<Path, Long>();
+	private long nextCheck;
+
+	public WatchKeyBudget() {
+		this(DEFAULT_MAX_KEYS, DEFAULT_IDLE_TIME, DEFAULT_POLL_INTERVAL);
+	}
+
+	/**
+	 * @param maxKeys most directories to hold a native watch at once
+	 * @param idleTime how long a directory may go without events before it is
+	 *        demoted, or 0 to only demote when over budget
+	 * @param pollInterval how often demoted directories are checked
+	 */
+	public WatchKeyBudget(int maxKeys, long idleTime, long pollInterval) {
+		if (maxKeys < 1) {
+			throw new IllegalArgumentException("Watch key budget must be at least one");
+		}
+		this.maxKeys = maxKeys;
+		this.idleTime = idleTime;
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Note a directory that has just been registered. Returns the keys of
+	 * any directories demoted to make room, which the caller must cancel.
+	 */
+	public synchronized List<WatchKey> watched(Path dir, WatchKey key, long now) {
+		demoted.remove(dir);
+		watched.put(dir, new Watched(key, now));
+		List<WatchKey> evicted = new ArrayList<WatchKey>();
+		Iterator<Map.Entry<Path, Watched>> it = watched.entrySet().iterator();
+		while (watched.size() > maxKeys && it.hasNext()) {
+			Map.Entry<Path, Watched> eldest = it.next();
+			it.remove();
+			// Events already queued on its key may be lost, so list it on the next check
+			demoted.put(eldest.getKey(), UNKNOWN);
+			evicted.add(eldest.getValue().key);
+		}
+		return evicted;
+	}
+
+	/**
+	 * Poll a directory that could not be watched, e.g. because the
+	 * operating system's limit was reached.
+	 */
+	public synchronized void unwatchable(Path dir) {
+		watched.remove(dir);
+		demoted.put(dir, UNKNOWN);
+	}
+
+	/**
+	 * Note that events arrived for a watched directory.
+	 */
+	public synchronized void active(Path dir, long now) {
+		Watched w = watched.get(dir);
+		if (w != null) {
+			w.lastActive = now;
+		}
+	}
+
+	/**
+	 * Stop tracking a directory that has gone. Returns its key if it was
+	 * watched, otherwise null.
+	 */
+	public synchronized WatchKey forget(Path dir) {
+		demoted.remove(dir);
+		Watched w = watched.remove(dir);
+		return w == null ? null : w.key;
+	}
+
+	/**
+	 * True if the directory is either watched or polled.
+	 */
+	public synchronized boolean isKnown(Path dir) {
+		return watched.containsKey(dir) || demoted.containsKey(dir);
+	}
+
+	public synchronized boolean isEmpty() {
+		return watched.isEmpty() && demoted.isEmpty();
+	}
+
+	public synchronized int watchedCount() {
+		return watched.size();
+	}
+
+	public synchronized int demotedCount() {
+		return demoted.size();
+	}
+
+	/**
+	 * When {@link #check} next needs to run.
+	 */
+	public synchronized long nextCheck() {
+		return nextCheck;
+	}
+
+	/**
+	 * Demote the directories that have been idle too long and return their
+	 * keys, which the caller must cancel.
+	 */
+	public synchronized List<WatchKey> demoteIdle(long now) {
+		List<WatchKey> idle = new ArrayList<WatchKey>();
+		if (idleTime <= 0) {
+			return idle;
+		}
+		Iterator<Map.Entry<Path, Watched>> it = watched.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, Watched> eldest = it.next();
+			if (now - eldest.getValue().lastActive < idleTime) {
+				break;
+			}
+			it.remove();
+			demoted.put(eldest.getKey(), UNKNOWN);
+			idle.add(eldest.getValue().key);
+		}
+		return idle;
+	}
+
+	/**
+	 * Check the modification time of every demoted directory and return
+	 * those that have changed since they were last looked at. Directories
+	 * that have gone are forgotten. Does not hold the lock while it looks,
+	 * so the watch loop is never kept waiting.
+	 */
+	public List<Path> check(long now) {
+		Map<Path, Long> before;
+		synchronized (this) {
+			nextCheck = now + pollInterval;
+			before = new HashMap<Path, Long>(demoted);
+		}
+		List<Path> changed = new ArrayList<Path>();
+		for (Map.Entry<Path, Long> e : before.entrySet()) {
+			Path dir = e.getKey();
+			long modified;
+			try {
+				modified = Files.getLastModifiedTime(dir).toMillis();
+			} catch (IOException x) {
+				synchronized (this) {
+					demoted.remove(dir);
+				}
+				continue;
+			}
+			if (modified == e.getValue()) {
+				continue;
+			}
+			synchronized (this) {
+				// Unless it was promoted or forgotten meanwhile
+				if (demoted.containsKey(dir)) {
+					demoted.put(dir, modified);
+					changed.add(dir);
+				}
+			}
+		}
+		return changed;
+	}
+
+	private static class Watched {
+		final WatchKey key;
+		long lastActive;
+
+		Watched(WatchKey key, long lastActive) {
+			this.key = key;
+			this.lastActive = lastActive;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package omeroautouploader;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import ome.formats.importer.ImportConfig;
+
+/**
+ * A folder to watch and where on the server its images should go.
+ */
+public class WatchRoot {
+	public final Path path;
+	public final boolean recursive;
+
+	/** Find new files by polling, for shares the WatchService cannot see. */
+	public final boolean poll;
+
+	/** Configuration whose targetClass and targetId say where images go. */
+	public final ImportConfig target;
+
+	/** Roots with a higher priority are uploaded first. */
+	public final int priority;
+
+	/** Upload limit for this root in bytes per second, 0 for none. */
+	public final long bandwidth;
+
+	/** Where images go on each server, by server, if there are several. */
+	public final Map<String, ImportConfig> serverTargets;
+
+	public WatchRoot(Path path, boolean recursive, ImportConfig target) {
+		this(path, recursive, false, target);
+	}
+
+	public WatchRoot(Path path, boolean recursive, boolean poll, ImportConfig target) {
+		this(path, recursive, poll, target, 0, 0L);
+	}
+
+	public WatchRoot(Path path, boolean recursive, boolean poll, ImportConfig target,
+			int priority, long bandwidth) {
+		this(path, recursive, poll, target, priority, bandwidth, Collections.<String, ImportConfig>emptyMap());
+	}
+
+	public WatchRoot(Path path, boolean recursive, boolean poll, ImportConfig target,
+			int priority, long bandwidth, Map<String, ImportConfig> serverTargets) {
+		this.path = path.toAbsolutePath().normalize();
+		this.recursive = recursive;
+		this.poll = poll;
+		this.target = target;
+		this.priority = priority;
+		this.bandwidth = bandwidth;
+		this.serverTargets = Collections.unmodifiableMap(new HashMap<String, ImportConfig>(serverTargets));
+	}
+
+	/**
+	 * Where images go on the named server: target if this root was given
+	 * none per server, otherwise the one given for that server.
+	 */
+	public ImportConfig targetOn(String server) {
+		if (serverTargets.isEmpty()) {
+			return target;
+		}
+		ImportConfig config = serverTargets.get(server);
+		if (config == null) {
+			throw new IllegalStateException("No target on server " + server + " for " + path);
+		}
+		return config;
+	}
+
+	/**
+	 * True if the file lies inside this root.
+	 */
+	public boolean contains(Path file) {
+		return file.startsWith(path) && (recursive || path.equals(file.getParent()));
+	}
+
+	@Override
+	public String toString() {
+		return path + " -> " + target.targetClass.get() + ":" + target.targetId.get();
+	}
+}
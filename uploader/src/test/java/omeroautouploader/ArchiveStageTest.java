@@ -0,0 +1,113 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveStageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private WatchRoot root;
+	private Path archive;
+	private Path moved;
+
+	@Before
+	public void setUp() throws IOException {
+		root = new WatchRoot(folder.newFolder("instrument").toPath(), true, null);
+		archive = folder.newFolder("archive").toPath();
+		moved = archive.resolve("instrument").resolve("run").resolve("a.tif");
+	}
+
+	@Test
+	public void movesAVerifiedFileToTheSamePathBelowTheArchive() throws IOException {
+		ImportItem item = item("run/a.tif", "pixels");
+		ArchiveStage stage = new ArchiveStage(ArchiveStage.Mode.MOVE, archive);
+		stage.submit(item, item.hash);
+		stage.shutdown();
+		assertFalse(Files.exists(item.file));
+		assertArrayEquals(bytes("pixels"), Files.readAllBytes(moved));
+	}
+
+	@Test
+	public void neverOverwritesWhatIsAlreadyArchived() throws IOException {
+		ArchiveStage stage = new ArchiveStage(ArchiveStage.Mode.MOVE, archive);
+		ImportItem first = item("run/a.tif", "first");
+		stage.submit(first, first.hash);
+		stage.shutdown();
+		stage = new ArchiveStage(ArchiveStage.Mode.MOVE, archive);
+		ImportItem second = item("run/a.tif", "second");
+		stage.submit(second, second.hash);
+		stage.shutdown();
+		assertArrayEquals(bytes("first"), Files.readAllBytes(moved));
+		assertArrayEquals(bytes("second"), Files.readAllBytes(moved.resolveSibling("a.tif.1")));
+	}
+
+	@Test
+	public void leavesAFileSentWithAnotherChecksum() throws IOException {
+		ImportItem item = item("run/a.tif", "pixels");
+		ArchiveStage stage = new ArchiveStage(ArchiveStage.Mode.DELETE, null);
+		stage.submit(item, ChecksumStage.sha1(write("other.tif", "other pixels")));
+		stage.submit(item("run/b.tif", "pixels"), null);
+		stage.shutdown();
+		assertTrue(Files.exists(item.file));
+		assertTrue(Files.exists(root.path.resolve("run/b.tif")));
+	}
+
+	@Test
+	public void leavesAFileRewrittenWithTheSameSizeAndTime() throws IOException {
+		ImportItem item = item("run/a.tif", "pixels");
+		write("run/a.tif", "PIXELS");
+		Files.setLastModifiedTime(item.file, FileTime.fromMillis(item.modified));
+		ArchiveStage stage = new ArchiveStage(ArchiveStage.Mode.MOVE, archive);
+		stage.submit(item, item.hash);
+		stage.shutdown();
+		assertTrue(Files.exists(item.file));
+		assertFalse(Files.exists(moved));
+	}
+
+	@Test
+	public void deletesADuplicateThatStillMatchesItsChecksum() throws IOException {
+		ImportItem item = item("run/a.tif", "pixels");
+		ImportItem changed = item("run/b.tif", "pixels");
+		write("run/b.tif", "more pixels");
+		ArchiveStage stage = new ArchiveStage(ArchiveStage.Mode.DELETE, null);
+		stage.submitDuplicate(item);
+		stage.submitDuplicate(changed);
+		stage.shutdown();
+		assertFalse(Files.exists(item.file));
+		assertTrue(Files.exists(changed.file));
+	}
+
+	/**
+	 * A file below the root, as the checksum stage hands it on.
+	 */
+	private ImportItem item(String name, String content) throws IOException {
+		Path file = write(name, content);
+		ImportItem item = new ImportItem(file, Files.size(file), Files.getLastModifiedTime(file).toMillis(), root);
+		item.hash = ChecksumStage.sha1(file);
+		return item;
+	}
+
+	private Path write(String name, String content) throws IOException {
+		Path file = root.path.resolve(name);
+		Files.createDirectories(file.getParent());
+		return Files.write(file, bytes(content));
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+}
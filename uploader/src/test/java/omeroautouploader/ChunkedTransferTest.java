@@ -0,0 +1,178 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedTransferTest {
+
+	private static final int CHUNK = ChunkedTransfer.BLOCK_SIZE;
+	private static final int CHUNKS = 6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path received;
+	private LocalChunkServer server;
+	private SocketChunkSink sink;
+	private ChunkedTransfer transfer;
+	private Path file;
+	private byte[] data;
+	private String id;
+
+	@Before
+	public void setUp() throws IOException {
+		received = folder.newFolder("received").toPath();
+		server = new LocalChunkServer(received, 0);
+		sink = new SocketChunkSink(server.getAddress());
+		transfer = new ChunkedTransfer(CHUNK, 3);
+		// Not a whole number of chunks, so the last one is short
+		data = new byte[CHUNKS * CHUNK - 1000];
+		new Random(1).nextBytes(data);
+		file = Files.write(folder.getRoot().toPath().resolve("big.tif"), data);
+		id = ChunkedTransfer.id(file, data.length, 0L);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		transfer.shutdown();
+		sink.close();
+		server.close();
+	}
+
+	@Test
+	public void sendsEveryByteOverSeveralStreams() throws IOException {
+		String sha1 = transfer.send(file, id, sink);
+		assertEquals(ChecksumStage.sha1(file), sha1);
+		assertArrayEquals(data, Files.readAllBytes(received.resolve(id)));
+	}
+
+	@Test
+	public void resendsAChunkThatArrivesCorrupted() throws IOException {
+		Flaky flaky = new Flaky(sink);
+		flaky.corrupt = 2;
+		transfer.send(file, id, flaky);
+		assertEquals(2, flaky.writes.get(2).intValue());
+		assertArrayEquals(data, Files.readAllBytes(received.resolve(id)));
+	}
+
+	@Test
+	public void resumesWithTheChunksAlreadyHeldAfterTheServerRestarts() throws IOException {
+		Flaky flaky = new Flaky(sink);
+		flaky.failFrom = 3;
+		try {
+			transfer.send(file, id, flaky);
+			fail("Sent every chunk though the later ones always failed");
+		} catch (IOException e) {
+			// as expected; the first chunks are held by the server
+		}
+		sink.close();
+		server.close();
+		server = new LocalChunkServer(received, 0);
+		sink = new SocketChunkSink(server.getAddress());
+
+		Flaky counting = new Flaky(sink);
+		assertEquals(ChecksumStage.sha1(file), transfer.send(file, id, counting));
+		assertEquals(counting.writes.keySet().toString(), CHUNKS - 3, counting.writes.size());
+		for (int i = 0; i < 3; i++) {
+			assertFalse(counting.writes.containsKey(i));
+		}
+		assertArrayEquals(data, Files.readAllBytes(received.resolve(id)));
+	}
+
+	@Test(timeout = 20000)
+	public void aReadThatFailsGivesItsBufferBack() throws IOException {
+		// Reading a folder fails on Linux and macOS, which open it for reading
+		Path unreadable = folder.newFolder("unreadable").toPath();
+		// More failures than there are buffers, each losing one if not given back
+		for (int i = 0; i < 10; i++) {
+			try {
+				transfer.send(unreadable, ChunkedTransfer.id(unreadable, 0L, i), sink);
+				fail("Read a folder");
+			} catch (IOException e) {
+				// as expected
+			}
+		}
+		assertEquals(ChecksumStage.sha1(file), transfer.send(file, id, sink));
+	}
+
+	/**
+	 * Passes chunks on to another sink, counting the writes of each, and
+	 * failing or corrupting them when asked to.
+	 */
+	private static class Flaky implements ChunkSink {
+		final ChunkSink to;
+		final Map<Integer, Integer> writes = new ConcurrentHashMap<Integer, Integer>();
+		final Set<Integer> corrupted = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		/** Chunks from this index on always fail. */
+		volatile int failFrom = Integer.MAX_VALUE;
+		/** Chunk whose first block arrives damaged the first time it is sent. */
+		volatile int corrupt = -1;
+
+		Flaky(ChunkSink to) {
+			this.to = to;
+		}
+
+		@Override
+		public Map<Integer, String> open(String id, long size, int chunkSize) throws IOException {
+			return to.open(id, size, chunkSize);
+		}
+
+		@Override
+		public Writer write(String id, final int index, long offset, long length) throws IOException {
+			Integer before = writes.get(index);
+			writes.put(index, before == null ? 1 : before + 1);
+			final Writer writer = to.write(id, index, offset, length);
+			return new Writer() {
+				@Override
+				public void write(ByteBuffer block) throws IOException {
+					if (index >= failFrom) {
+						writer.abort();
+						throw new IOException("Connection dropped");
+					}
+					if (index == corrupt && corrupted.add(index)) {
+						ByteBuffer copy = ByteBuffer.allocate(block.remaining());
+						copy.put(block);
+						copy.put(0, (byte) (copy.get(0) + 1));
+						copy.flip();
+						writer.write(copy);
+						return;
+					}
+					writer.write(block);
+				}
+
+				@Override
+				public String complete() throws IOException {
+					return writer.complete();
+				}
+
+				@Override
+				public void abort() {
+					writer.abort();
+				}
+			};
+		}
+
+		@Override
+		public String finish(String id) throws IOException {
+			return to.finish(id);
+		}
+	}
+}
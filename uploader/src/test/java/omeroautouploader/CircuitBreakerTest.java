@@ -0,0 +1,74 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private static final long COOL_DOWN = 50L;
+
+	private final AtomicInteger closed = new AtomicInteger();
+	private CircuitBreaker breaker;
+
+	@Before
+	public void setUp() {
+		breaker = new CircuitBreaker("test", 3, COOL_DOWN, 4 * COOL_DOWN, new Runnable() {
+			@Override
+			public void run() {
+				closed.incrementAndGet();
+			}
+		});
+	}
+
+	@Test
+	public void opensAfterTheThresholdOfFailuresInARow() {
+		breaker.failure();
+		breaker.failure();
+		breaker.success();
+		breaker.failure();
+		breaker.failure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(CircuitBreaker.Turn.IMPORT, breaker.tryTurn());
+		breaker.failure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.Turn.WAIT, breaker.tryTurn());
+		assertTrue(breaker.waitTime() > 0);
+	}
+
+	@Test
+	public void letsOneCallerProbeOnceCooledDownAndClosesIfItSucceeds() throws InterruptedException {
+		open();
+		Thread.sleep(COOL_DOWN + 10);
+		assertEquals(0L, breaker.waitTime());
+		assertEquals(CircuitBreaker.Turn.PROBE, breaker.tryTurn());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.Turn.WAIT, breaker.tryTurn());
+		assertEquals(-1L, breaker.waitTime());
+		breaker.success();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1, closed.get());
+	}
+
+	@Test
+	public void opensForLongerEachTimeAProbeFails() throws InterruptedException {
+		open();
+		Thread.sleep(COOL_DOWN + 10);
+		assertEquals(CircuitBreaker.Turn.PROBE, breaker.tryTurn());
+		breaker.failure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.waitTime() > COOL_DOWN);
+		assertEquals(0, closed.get());
+	}
+
+	private void open() {
+		for (int i = 0; i < 3; i++) {
+			breaker.failure();
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+}
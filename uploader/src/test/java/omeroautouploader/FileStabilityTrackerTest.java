@@ -0,0 +1,102 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileStabilityTrackerTest {
+
+	/** Modification time given to the files; the tracker is told the time. */
+	private static final long T0 = 1000000000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileStabilityTracker tracker;
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		tracker = new FileStabilityTracker();
+		file = write("a.tif", 100, T0);
+	}
+
+	@Test
+	public void reportsAQuietFileAfterItsWindow() {
+		long now = T0 + 10000;
+		tracker.touch(file, now);
+		assertEquals(now + FileStabilityTracker.INITIAL_WINDOW, tracker.nextDeadline());
+		assertTrue(tracker.expire(now + FileStabilityTracker.INITIAL_WINDOW - 1).isEmpty());
+		assertEquals(Collections.singletonList(file), tracker.expire(now + FileStabilityTracker.INITIAL_WINDOW));
+		assertTrue(tracker.isEmpty());
+	}
+
+	@Test
+	public void countsTheFilesOfEveryTrackerInTheMetrics() throws IOException {
+		PipelineMetrics metrics = PipelineMetrics.get();
+		int before = metrics.getTrackedFiles();
+		FileStabilityTracker other = new FileStabilityTracker();
+		tracker.touch(file, T0);
+		other.touch(write("b.tif", 100, T0), T0);
+		other.touch(write("c.tif", 100, T0), T0);
+		assertEquals(before + 3, metrics.getTrackedFiles());
+		tracker.forget(file);
+		assertEquals(before + 2, metrics.getTrackedFiles());
+		other.clear();
+		assertEquals(before, metrics.getTrackedFiles());
+	}
+
+	@Test
+	public void waitsUntilTheModificationTimeIsOldEnough() {
+		// Unchanged at the first check, but written within the last tick
+		long now = T0 - 1500;
+		tracker.touch(file, now);
+		long check = now + FileStabilityTracker.INITIAL_WINDOW;
+		assertTrue(tracker.expire(check).isEmpty());
+		assertEquals(check + FileStabilityTracker.INITIAL_WINDOW, tracker.nextDeadline());
+		assertEquals(Collections.singletonList(file), tracker.expire(check + FileStabilityTracker.INITIAL_WINDOW));
+	}
+
+	@Test
+	public void growsTheWindowWhileAFileIsWrittenAndShrinksItAfter() throws IOException {
+		long now = T0 + 10000;
+		tracker.touch(file, now);
+		write("a.tif", 200, now + 1000);
+		long check = now + FileStabilityTracker.INITIAL_WINDOW;
+		assertTrue(tracker.expire(check).isEmpty());
+		long grown = 2 * FileStabilityTracker.INITIAL_WINDOW;
+		assertEquals(check + grown, tracker.nextDeadline());
+		assertEquals(Collections.singletonList(file), tracker.expire(check + grown));
+
+		// The next file in the same folder starts from the shrunk window
+		Path next = write("b.tif", 100, T0);
+		tracker.touch(next, now);
+		assertEquals(now + grown - grown / 4, tracker.nextDeadline());
+	}
+
+	@Test
+	public void forgetsADeletedFile() {
+		tracker.touch(file, T0 + 10000);
+		tracker.forget(file);
+		assertTrue(tracker.isEmpty());
+		assertEquals(Long.MAX_VALUE, tracker.nextDeadline());
+	}
+
+	private Path write(String name, int size, long modified) throws IOException {
+		Path path = folder.getRoot().toPath().resolve(name);
+		Files.write(path, new byte[size], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+		return path;
+	}
+}
@@ -0,0 +1,96 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImportLedgerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path journal;
+
+	@Before
+	public void setUp() {
+		journal = folder.getRoot().toPath().resolve("ledger.journal");
+	}
+
+	@Test
+	public void replaysTheLatestRecordForEachFile() throws IOException {
+		Path a = Paths.get("/data/a.tif");
+		Path b = Paths.get("/data/b.tif");
+		ImportLedger ledger = new ImportLedger(journal);
+		ledger.record(a, ImportLedger.State.DETECTED, -1L, -1L);
+		ledger.record(a, ImportLedger.State.STABLE, 10L, 20L);
+		ledger.record(a, ImportLedger.State.IMPORTED, 10L, 20L, new long[] { 7L, 8L });
+		ledger.record(b, ImportLedger.State.IMPORTING, 30L, 40L);
+		ledger.close();
+
+		ledger = new ImportLedger(journal);
+		assertEquals(2, ledger.size());
+		assertTrue(ledger.isImported(a, 10L, 20L));
+		assertFalse(ledger.isImported(a, 10L, 21L));
+		assertArrayEquals(new long[] { 7L, 8L }, ledger.ids(a));
+		assertEquals(ImportLedger.State.IMPORTING, ledger.state(b));
+		assertEquals(Collections.singletonList(b), ledger.unfinished());
+		ledger.close();
+	}
+
+	@Test
+	public void ignoresATornRecord() throws IOException {
+		Path a = Paths.get("/data/a.tif");
+		Path b = Paths.get("/data/b.tif");
+		ImportLedger ledger = new ImportLedger(journal);
+		ledger.record(a, ImportLedger.State.IMPORTED, 10L, 20L);
+		ledger.record(b, ImportLedger.State.STABLE, 30L, 40L);
+		ledger.close();
+
+		// Damage the size in b's record, as a crash part way through would
+		int first = 4 + 1 + 8 + 8 + 4 + a.toString().length() + 4 + 4;
+		try (RandomAccessFile file = new RandomAccessFile(journal.toFile(), "rw")) {
+			file.seek(first + 4 + 1);
+			file.write(0xff);
+		}
+
+		ledger = new ImportLedger(journal);
+		assertTrue(ledger.isImported(a, 10L, 20L));
+		assertNull(ledger.state(b));
+		ledger.close();
+	}
+
+	@Test
+	public void compactsSupersededRecords() throws IOException {
+		ImportLedger ledger = new ImportLedger(journal);
+		// Enough to fill the initial journal several times over
+		for (int i = 0; i < 1000000; i++) {
+			ledger.record(Paths.get("/data/f" + (i % 10) + ".tif"), ImportLedger.State.STABLE, i, i);
+		}
+		ledger.record(Paths.get("/data/f0.tif"), ImportLedger.State.IMPORTED, 1L, 2L, new long[] { 3L });
+		ledger.close();
+		// Each compaction writes over the other journal rather than growing either
+		Path alternate = journal.resolveSibling("ledger.journal.alt");
+		assertEquals(16L * 1024 * 1024, Files.size(journal));
+		assertEquals(16L * 1024 * 1024, Files.size(alternate));
+
+		ledger = new ImportLedger(journal);
+		assertEquals(10, ledger.size());
+		assertTrue(ledger.isImported(Paths.get("/data/f0.tif"), 1L, 2L));
+		assertEquals(9, ledger.unfinished().size());
+		ledger.close();
+	}
+}
@@ -0,0 +1,134 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImportQueueTest {
+
+	/** Long enough for a thread that is not blocked to have got on. */
+	private static final long SETTLE = 200L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path spool;
+	private WatchRoot root;
+	private ExecutorService threads;
+
+	@Before
+	public void setUp() {
+		spool = folder.getRoot().toPath().resolve(ImportQueue.DIRECTORY_NAME);
+		root = new WatchRoot(folder.getRoot().toPath(), true, null);
+		threads = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		threads.shutdownNow();
+	}
+
+	@Test
+	public void spillsToDiskPastTheHighWaterMarkAndKeepsTheOrder() throws Exception {
+		ImportQueue queue = new ImportQueue(spool, 10, 1000, Long.MAX_VALUE);
+		for (int i = 0; i < 1000; i++) {
+			queue.put(item(i));
+		}
+		assertEquals(1000, queue.size());
+		assertEquals(990, queue.spilled());
+		assertTrue(spool.toFile().list().length > 0);
+		for (int i = 0; i < 1000; i++) {
+			ImportItem item = queue.take();
+			assertEquals(Paths.get("/data/f" + i + ".tif"), item.file);
+			assertEquals(i, item.size);
+			assertEquals(2L * i, item.modified);
+			assertSame(i % 2 == 0 ? root : null, item.root);
+			item.done();
+		}
+		assertEquals(0, queue.size());
+		assertEquals(0, spool.toFile().list().length);
+		queue.shutdown();
+	}
+
+	@Test
+	public void holdsBackNewFilesOnceTheLogIsFull() throws Exception {
+		final ImportQueue queue = new ImportQueue(spool, 2, 1000, 100);
+		Future<Void> producer = threads.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				for (int i = 0; i < 100; i++) {
+					queue.put(item(i));
+				}
+				return null;
+			}
+		});
+		Thread.sleep(SETTLE);
+		assertFalse(producer.isDone());
+		long held = queue.size();
+		assertTrue("held " + held, held > 2 && held < 100);
+		for (int i = 0; i < 100; i++) {
+			ImportItem item = queue.take();
+			assertEquals(i, item.size);
+			item.done();
+		}
+		producer.get(1, TimeUnit.SECONDS);
+		queue.shutdown();
+	}
+
+	@Test
+	public void letsOutNoMoreThanTheLimitAtOnce() throws Exception {
+		final ImportQueue queue = new ImportQueue(spool, 10, 2, Long.MAX_VALUE);
+		for (int i = 0; i < 3; i++) {
+			queue.put(item(i));
+		}
+		ImportItem first = queue.take();
+		queue.take();
+		Future<ImportItem> third = threads.submit(take(queue));
+		Thread.sleep(SETTLE);
+		assertFalse(third.isDone());
+		first.done();
+		assertEquals(2, third.get(1, TimeUnit.SECONDS).size);
+		queue.shutdown();
+	}
+
+	@Test
+	public void shutdownReleasesATakeAndDropsLaterFiles() throws Exception {
+		ImportQueue queue = new ImportQueue(spool, 10, 2, Long.MAX_VALUE);
+		Future<ImportItem> waiting = threads.submit(take(queue));
+		Thread.sleep(SETTLE);
+		queue.shutdown();
+		assertNull(waiting.get(1, TimeUnit.SECONDS));
+		queue.put(item(0));
+		assertEquals(0, queue.size());
+	}
+
+	private ImportItem item(int i) {
+		return new ImportItem(Paths.get("/data/f" + i + ".tif"), i, 2L * i, i % 2 == 0 ? root : null);
+	}
+
+	private static Callable<ImportItem> take(final ImportQueue queue) {
+		return new Callable<ImportItem>() {
+			@Override
+			public ImportItem call() throws InterruptedException {
+				return queue.take();
+			}
+		};
+	}
+}
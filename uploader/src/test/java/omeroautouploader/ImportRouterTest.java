@@ -0,0 +1,116 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImportRouterTest {
+
+	private static final ImportRouter.Prober NEVER = new ImportRouter.Prober() {
+		@Override
+		public void probe(ImportRouter.Endpoint endpoint) throws Exception {
+			throw new AssertionError("No server is due a probe");
+		}
+	};
+
+	private ImportRouter.Endpoint a;
+	private ImportRouter.Endpoint b;
+	private ImportRouter router;
+	private ExecutorService threads;
+
+	@Before
+	public void setUp() {
+		a = new ImportRouter.Endpoint("a", 1, null);
+		b = new ImportRouter.Endpoint("b", 1, null);
+		router = new ImportRouter(Arrays.asList(a, b));
+		threads = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		router.shutdown();
+		threads.shutdownNow();
+	}
+
+	@Test
+	public void movesAwayFromAServerThatKeepsFailing() throws InterruptedException {
+		fail(a, CircuitBreaker.DEFAULT_FAILURES);
+		assertEquals(CircuitBreaker.State.OPEN, a.breaker.getState());
+		assertTrue(router.canFailOver(a));
+		assertFalse(router.canFailOver(b));
+		for (int i = 0; i < 100; i++) {
+			ImportRouter.Endpoint chosen = router.choose(NEVER);
+			assertSame(b, chosen);
+			router.succeeded(chosen, 10L, 1024L);
+		}
+	}
+
+	@Test
+	public void sendsMoreToTheFasterServer() throws InterruptedException {
+		router.succeeded(take(a), 10L, 0L);
+		router.succeeded(take(b), 1000L, 0L);
+		int toA = 0;
+		for (int i = 0; i < 1000; i++) {
+			ImportRouter.Endpoint chosen = router.choose(NEVER);
+			if (chosen == a) {
+				toA++;
+			}
+			router.succeeded(chosen, chosen == a ? 10L : 1000L, 0L);
+		}
+		assertTrue("a got " + toA, toA > 900);
+	}
+
+	@Test
+	public void aReleasedImportDoesNotCountAgainstTheServer() throws InterruptedException {
+		for (int i = 0; i < CircuitBreaker.DEFAULT_FAILURES * 2; i++) {
+			router.released(take(a));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, a.breaker.getState());
+		assertEquals(0, a.inFlight);
+	}
+
+	@Test
+	public void waitsWhileEveryServerIsOpenUntilShutDown() throws Exception {
+		fail(a, CircuitBreaker.DEFAULT_FAILURES);
+		fail(b, CircuitBreaker.DEFAULT_FAILURES);
+		Future<ImportRouter.Endpoint> chosen = threads.submit(new Callable<ImportRouter.Endpoint>() {
+			@Override
+			public ImportRouter.Endpoint call() throws Exception {
+				return router.choose(NEVER);
+			}
+		});
+		Thread.sleep(100);
+		assertFalse(chosen.isDone());
+		router.shutdown();
+		assertNull(chosen.get(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * The given server, as if the router had chosen it.
+	 */
+	private ImportRouter.Endpoint take(ImportRouter.Endpoint endpoint) {
+		synchronized (router) {
+			endpoint.inFlight++;
+		}
+		return endpoint;
+	}
+
+	private void fail(ImportRouter.Endpoint endpoint, int times) {
+		for (int i = 0; i < times; i++) {
+			router.failed(take(endpoint));
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LeaseCoordinatorTest {
+
+	private static final long TTL = 2000L;
+	private static final long HEARTBEAT = 500L;
+	private static final Pattern IMPORTED = Pattern.compile("(node-\\d+) imported '(.*)'");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private WatchRoot root;
+	private final List<LeaseCoordinator> nodes = new ArrayList<LeaseCoordinator>();
+	private ExecutorService threads;
+
+	@Before
+	public void setUp() {
+		root = new WatchRoot(folder.getRoot().toPath(), true, null);
+		threads = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		threads.shutdownNow();
+		for (LeaseCoordinator node : nodes) {
+			node.shutdown();
+		}
+	}
+
+	@Test
+	public void onlyOneNodeClaimsEachFile() throws Exception {
+		LeaseCoordinator a = node("node-a");
+		LeaseCoordinator b = node("node-b");
+		for (int i = 0; i < 50; i++) {
+			Path file = file("f" + i + ".tif");
+			assertEquals(1, race(item(file), a, item(file), b));
+		}
+	}
+
+	@Test
+	public void anImportedFileIsNotClaimedAgain() throws Exception {
+		LeaseCoordinator a = node("node-a");
+		LeaseCoordinator b = node("node-b");
+		Path file = file("f.tif");
+		ImportItem mine = item(file);
+		assertTrue(a.claim(mine));
+		mine.lease = a;
+		assertFalse(b.claim(item(file)));
+		a.complete(mine, LeaseCoordinator.State.IMPORTED);
+		assertFalse(b.claim(item(file)));
+		assertFalse(a.claim(item(file)));
+	}
+
+	@Test
+	public void aReleasedFileCanBeClaimedByAnother() throws Exception {
+		LeaseCoordinator a = node("node-a");
+		LeaseCoordinator b = node("node-b");
+		Path file = file("f.tif");
+		ImportItem mine = item(file);
+		assertTrue(a.claim(mine));
+		mine.lease = a;
+		mine.done();
+		assertTrue(b.claim(item(file)));
+	}
+
+	@Test
+	public void theLeasesOfANodeThatStoppedAreTakenOverOnce() throws Exception {
+		// Beats too rarely to keep its heartbeat fresh, as if it had died
+		LeaseCoordinator dead = new LeaseCoordinator("node-dead", 120000L, 60000L, 100);
+		nodes.add(dead);
+		LeaseCoordinator b = node("node-b");
+		LeaseCoordinator c = node("node-c");
+		List<Path> files = new ArrayList<Path>();
+		for (int i = 0; i < 20; i++) {
+			Path file = file("f" + i + ".tif");
+			assertTrue(dead.claim(item(file)));
+			files.add(file);
+		}
+		Files.delete(folder.getRoot().toPath().resolve(".node-dead" + LeaseCoordinator.NODE_SUFFIX));
+		for (Path file : files) {
+			assertEquals(1, race(item(file), b, item(file), c));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void uploadersInSeparateProcessesImportEachFileOnce() throws Exception {
+		for (int i = 0; i < 30; i++) {
+			file("f" + i + ".tif");
+		}
+		// LeaseCoordinator's main stands in for an uploader, printing each file it imports
+		List<Process> uploaders = new ArrayList<Process>();
+		for (int i = 0; i < 3; i++) {
+			ProcessBuilder builder = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"),
+				LeaseCoordinator.class.getName(), folder.getRoot().toString(), "node-" + i, "20");
+			builder.redirectErrorStream(true);
+			uploaders.add(builder.start());
+		}
+		Map<String, String> importedBy = new HashMap<String, String>();
+		for (Process uploader : uploaders) {
+			StringBuilder output = new StringBuilder();
+			try (BufferedReader out = new BufferedReader(
+					new InputStreamReader(uploader.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = out.readLine()) != null) {
+					output.append(line).append('\n');
+					Matcher m = IMPORTED.matcher(line);
+					if (m.matches()) {
+						String before = importedBy.put(m.group(2), m.group(1));
+						assertNull(m.group(2) + " imported by " + before + " and " + m.group(1), before);
+					}
+				}
+			}
+			assertEquals(output.toString(), 0, uploader.waitFor());
+		}
+		assertEquals(30, importedBy.size());
+	}
+
+	private LeaseCoordinator node(String name) {
+		LeaseCoordinator node = new LeaseCoordinator(name, TTL, HEARTBEAT, 100);
+		nodes.add(node);
+		return node;
+	}
+
+	private Path file(String name) throws IOException {
+		return Files.write(folder.getRoot().toPath().resolve(name), new byte[16]);
+	}
+
+	private ImportItem item(Path file) throws IOException {
+		return new ImportItem(file, Files.size(file), Files.getLastModifiedTime(file).toMillis(), root);
+	}
+
+	/**
+	 * Number of the two nodes that won the file, claiming at the same time.
+	 */
+	private int race(ImportItem first, LeaseCoordinator one, ImportItem second, LeaseCoordinator other)
+			throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		Future<Boolean> a = threads.submit(claim(start, one, first));
+		Future<Boolean> b = threads.submit(claim(start, other, second));
+		start.countDown();
+		return (a.get() ? 1 : 0) + (b.get() ? 1 : 0);
+	}
+
+	private static Callable<Boolean> claim(final CountDownLatch start, final LeaseCoordinator node,
+			final ImportItem item) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				start.await();
+				return node.claim(item);
+			}
+		};
+	}
+}
@@ -0,0 +1,43 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StateDirectoryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void aSecondUploaderIsRefusedTheFolderUntilTheFirstStops() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("node-a");
+		StateDirectory first = StateDirectory.lock(path);
+		try {
+			StateDirectory.lock(path);
+			fail("Locked the folder twice");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+		}
+		StateDirectory.lock(folder.getRoot().toPath().resolve("node-b")).close();
+		first.close();
+		first.close();
+		StateDirectory second = StateDirectory.lock(path);
+		assertEquals(path.resolve(ImportLedger.FILE_NAME), second.resolve(ImportLedger.FILE_NAME));
+		second.close();
+	}
+
+	@Test
+	public void nodesGetFoldersOfTheirOwn() {
+		assertEquals(StateDirectory.BASE.resolve("node-a"), StateDirectory.defaultPath("node-a"));
+		assertEquals(StateDirectory.BASE.resolve("a_b"), StateDirectory.defaultPath(" a/b "));
+		assertEquals(StateDirectory.defaultPath(null), StateDirectory.defaultPath(""));
+	}
+}
@@ -0,0 +1,59 @@
+package omeroautouploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import ome.formats.importer.ImportConfig;
+
+public class UploaderDaemonTest {
+
+	/** Read from the source, so that the documented example is what is checked. */
+	private static final String SOURCE = "src/main/java/omeroautouploader/UploaderDaemon.java";
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aRootWithoutATargetOnEveryServerIsRefused() throws IOException {
+		Properties props = example();
+		props.setProperty("root.confocal.serverTargetIds", "backup:12");
+		check(props);
+	}
+
+	@Test
+	public void theDocumentedExampleIsAccepted() throws IOException {
+		List<WatchRoot> roots = check(example());
+		assertEquals(2, roots.size());
+		for (WatchRoot root : roots) {
+			assertTrue(root.serverTargets.keySet().toString(),
+				root.serverTargets.keySet().containsAll(Arrays.asList("main", "backup")));
+		}
+	}
+
+	private static List<WatchRoot> check(Properties props) {
+		ImportConfig connection = UploaderDaemon.connection(props);
+		List<WatchRoot> roots = UploaderDaemon.roots(props, connection);
+		UploaderDaemon.checkTargets(props, roots,
+			UploaderDaemon.servers(props, connection, new ReaderCache()));
+		return roots;
+	}
+
+	/**
+	 * The example configuration in the class comment.
+	 */
+	private static Properties example() throws IOException {
+		String source = new String(Files.readAllBytes(Paths.get(SOURCE)), StandardCharsets.UTF_8);
+		String example = source.substring(source.indexOf("<pre>") + 5, source.indexOf("</pre>"));
+		Properties props = new Properties();
+		props.load(new StringReader(example.replaceAll("(?m)^\\s*\\* ?", "")));
+		return props;
+	}
+}